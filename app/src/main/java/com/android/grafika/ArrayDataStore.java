@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Circular data store backed by a single byte[], allocated up front.
+ */
+public class ArrayDataStore extends CircularDataStore {
+    // The MediaMuxer writeSampleData() function takes a ByteBuffer.  If it's a "direct"
+    // ByteBuffer it'll access the data directly, if it's a regular ByteBuffer it'll use
+    // JNI functions to access the backing byte[] (which, in the current VM, is done without
+    // copying the data).
+    //
+    // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
+    // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
+    // we can just copy the packet into the staging buffer (we know it happens at most once
+    // per file save operation).
+    private ByteBuffer mDataBufferWrapper;
+    private byte[] mDataBuffer;
+
+    public ArrayDataStore(int capacity) {
+        mDataBuffer = new byte[capacity];
+        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+    }
+
+    @Override
+    public CircularDataStore createResized(int capacity) {
+        return new ArrayDataStore(capacity);
+    }
+
+    @Override
+    public int getCapacity() {
+        return mDataBuffer.length;
+    }
+
+    @Override
+    public void put(int offset, ByteBuffer buf, int size) {
+        final int dataLen = mDataBuffer.length;
+
+        // Copy the data in.  Take care if it gets split in half.
+        if (offset + size < dataLen) {
+            // one chunk
+            buf.get(mDataBuffer, offset, size);
+        } else {
+            // two chunks
+            int firstSize = dataLen - offset;
+            buf.get(mDataBuffer, offset, firstSize);
+            buf.get(mDataBuffer, 0, size - firstSize);
+        }
+    }
+
+    @Override
+    public ByteBuffer get(int offset, int length, MediaCodec.BufferInfo info) {
+        final int dataLen = mDataBuffer.length;
+
+        if (offset + length <= dataLen) {
+            // one chunk; return full buffer to avoid copying data
+            info.offset = offset;
+            return mDataBufferWrapper;
+        } else {
+            // two chunks
+            ByteBuffer tempBuf = getStagingBuffer(length);
+            int firstSize = dataLen - offset;
+            tempBuf.put(mDataBuffer, offset, firstSize);
+            tempBuf.put(mDataBuffer, 0, length - firstSize);
+            tempBuf.flip();
+            info.offset = 0;
+            return tempBuf;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Minimal H.264 bitstream parser.  Splits encoded packets into NAL units, caches the
+ * sequence and picture parameter sets, classifies slices as IDR or non-IDR, and keeps
+ * running per-frame statistics.  Nothing is decoded.
+ * <p>
+ * Packets may be in Annex-B format (NAL units separated by 00 00 01 or 00 00 00 01 start
+ * codes, as produced by MediaCodec) or AVCC format (each NAL unit preceded by a 4-byte
+ * big-endian length, as stored in .mp4 files).
+ * <p>
+ * This doesn't use any Android APIs, so it can be exercised on a desktop JVM.  Not
+ * thread-safe.
+ */
+public class AvcNalParser {
+    // NAL unit types (H.264 table 7-1) that we care about.
+    public static final int NAL_SLICE = 1;
+    public static final int NAL_IDR_SLICE = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+
+    // Bits in the value returned by parse(), describing what the packet contained.
+    public static final int CONTAINS_IDR = 1;
+    public static final int CONTAINS_NON_IDR = 1 << 1;
+    public static final int CONTAINS_SPS = 1 << 2;
+    public static final int CONTAINS_PPS = 1 << 3;
+    public static final int CONTAINS_SEI = 1 << 4;
+
+    private byte[] mSps;
+    private byte[] mPps;
+
+    private long mIdrFrameCount;
+    private long mNonIdrFrameCount;
+    private long mIdrByteCount;
+    private long mNonIdrByteCount;
+    private int mMaxFrameSize;
+
+    /**
+     * Parses a packet, caching any parameter sets it contains and updating the statistics.
+     *
+     * @param buf Buffer holding the packet at [offset, offset+size).  The position and limit
+     *     are not used or altered.
+     * @return A combination of the CONTAINS_* bits.
+     */
+    public int parse(ByteBuffer buf, int offset, int size) {
+        int end = offset + size;
+        int contents = 0;
+
+        if (findStartCode(buf, offset, end) == offset) {
+            // Annex-B
+            int nalStart = offset;
+            while (nalStart < end) {
+                int dataStart = nalStart + startCodeLength(buf, nalStart);
+                int next = findStartCode(buf, dataStart, end);
+                contents |= handleNal(buf, dataStart, next - dataStart);
+                nalStart = next;
+            }
+        } else {
+            // AVCC
+            int pos = offset;
+            while (pos + 4 <= end) {
+                int nalLen = buf.getInt(pos);
+                pos += 4;
+                if (nalLen <= 0 || pos + nalLen > end) {
+                    break;      // malformed
+                }
+                contents |= handleNal(buf, pos, nalLen);
+                pos += nalLen;
+            }
+        }
+
+        if ((contents & CONTAINS_IDR) != 0) {
+            mIdrFrameCount++;
+            mIdrByteCount += size;
+        } else if ((contents & CONTAINS_NON_IDR) != 0) {
+            mNonIdrFrameCount++;
+            mNonIdrByteCount += size;
+        }
+        if ((contents & (CONTAINS_IDR | CONTAINS_NON_IDR)) != 0 && size > mMaxFrameSize) {
+            mMaxFrameSize = size;
+        }
+        return contents;
+    }
+
+    /**
+     * Returns true once both an SPS and a PPS have been seen.
+     */
+    public boolean hasParameterSets() {
+        return mSps != null && mPps != null;
+    }
+
+    /**
+     * Returns the most recent sequence parameter set, without start code or length prefix,
+     * or null if none has been seen.  The caller must not modify the array.
+     */
+    public byte[] getSps() {
+        return mSps;
+    }
+
+    /**
+     * Returns the most recent picture parameter set, without start code or length prefix,
+     * or null if none has been seen.  The caller must not modify the array.
+     */
+    public byte[] getPps() {
+        return mPps;
+    }
+
+    public long getIdrFrameCount() {
+        return mIdrFrameCount;
+    }
+
+    public long getNonIdrFrameCount() {
+        return mNonIdrFrameCount;
+    }
+
+    public long getIdrByteCount() {
+        return mIdrByteCount;
+    }
+
+    public long getNonIdrByteCount() {
+        return mNonIdrByteCount;
+    }
+
+    public int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    @Override
+    public String toString() {
+        return "AvcNalParser[idr=" + mIdrFrameCount + "/" + mIdrByteCount + "B nonIdr=" +
+                mNonIdrFrameCount + "/" + mNonIdrByteCount + "B maxFrame=" + mMaxFrameSize +
+                " params=" + hasParameterSets() + "]";
+    }
+
+    /**
+     * Handles a single NAL unit.  Returns the CONTAINS_* bit for it, or zero.
+     */
+    private int handleNal(ByteBuffer buf, int start, int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        int nalType = buf.get(start) & 0x1f;
+        switch (nalType) {
+            case NAL_SLICE:
+                return CONTAINS_NON_IDR;
+            case NAL_IDR_SLICE:
+                return CONTAINS_IDR;
+            case NAL_SEI:
+                return CONTAINS_SEI;
+            case NAL_SPS:
+                mSps = cacheNal(mSps, buf, start, length);
+                return CONTAINS_SPS;
+            case NAL_PPS:
+                mPps = cacheNal(mPps, buf, start, length);
+                return CONTAINS_PPS;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns a copy of the NAL unit, or "cached" if it's unchanged.  Encoders generally
+     * repeat the same parameter sets, so this avoids allocating after the first.
+     */
+    private static byte[] cacheNal(byte[] cached, ByteBuffer buf, int start, int length) {
+        if (cached != null && cached.length == length) {
+            boolean same = true;
+            for (int i = 0; i < length; i++) {
+                if (cached[i] != buf.get(start + i)) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return cached;
+            }
+        }
+        byte[] nal = new byte[length];
+        for (int i = 0; i < length; i++) {
+            nal[i] = buf.get(start + i);
+        }
+        return nal;
+    }
+
+    /**
+     * Returns true if the Annex-B access unit holds slices and none of them is used for
+     * reference (nal_ref_idc is zero), so it can be dropped without breaking the frames
+     * that follow.  Returns false for anything it can't tell.
+     */
+    public static boolean isDisposable(ByteBuffer buf, int offset, int size) {
+        int end = offset + size;
+        if (findStartCode(buf, offset, end) != offset) {
+            return false;
+        }
+        boolean sawSlice = false;
+        int nalStart = offset;
+        while (nalStart < end) {
+            int dataStart = nalStart + startCodeLength(buf, nalStart);
+            int next = findStartCode(buf, dataStart, end);
+            if (dataStart < next) {
+                int header = buf.get(dataStart);
+                int nalType = header & 0x1f;
+                if (nalType == NAL_SLICE || nalType == NAL_IDR_SLICE) {
+                    if ((header & 0x60) != 0) {
+                        return false;
+                    }
+                    sawSlice = true;
+                }
+            }
+            nalStart = next;
+        }
+        return sawSlice;
+    }
+
+    /**
+     * Returns the offset of the next 00 00 01 or 00 00 00 01 start code at or after
+     * "start", or "end" if there isn't one.
+     */
+    public static int findStartCode(ByteBuffer buf, int start, int end) {
+        for (int i = start; i + 2 < end; i++) {
+            if (buf.get(i) == 0 && buf.get(i + 1) == 0) {
+                if (buf.get(i + 2) == 1) {
+                    return i;
+                }
+                if (i + 3 < end && buf.get(i + 2) == 0 && buf.get(i + 3) == 1) {
+                    return i;
+                }
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns the length (3 or 4) of the start code at "pos".
+     */
+    public static int startCodeLength(ByteBuffer buf, int pos) {
+        return buf.get(pos + 2) == 1 ? 3 : 4;
+    }
+
+    /**
+     * Returns the NAL unit with a 4-byte Annex-B start code prepended, which is the form
+     * MediaFormat wants for csd-0 and csd-1.
+     */
+    public static byte[] withStartCode(byte[] nal) {
+        byte[] out = new byte[nal.length + 4];
+        out[3] = 1;
+        System.arraycopy(nal, 0, out, 4, nal.length);
+        return out;
+    }
+
+    /**
+     * Returns the NAL unit without its leading start code, if it has one.
+     */
+    public static byte[] stripStartCode(byte[] nal) {
+        ByteBuffer bb = ByteBuffer.wrap(nal);
+        if (findStartCode(bb, 0, nal.length) != 0) {
+            return nal;
+        }
+        return Arrays.copyOfRange(nal, startCodeLength(bb, 0), nal.length);
+    }
+}
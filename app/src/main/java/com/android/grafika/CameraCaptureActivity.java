@@ -37,6 +37,7 @@ import android.widget.Button;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.widget.Toast;
@@ -176,7 +177,11 @@ public class CameraCaptureActivity extends Activity
         // Configure the GLSurfaceView.  This will start the Renderer thread, with an
         // appropriate EGL context.
         mGLView = (GLSurfaceView) findViewById(R.id.cameraPreview_surfaceView);
-        mGLView.setEGLContextClientVersion(2);     // select GLES 2.0
+        // Use GLES 3.0 if the device has it.  That gives us fence sync objects, which
+        // TextureMovieEncoder uses to hand the camera texture back and forth.
+        ActivityManager am = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        boolean haveGles3 = am.getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000;
+        mGLView.setEGLContextClientVersion(haveGles3 ? 3 : 2);
         mRenderer = new CameraSurfaceRenderer(mCameraHandler, sVideoEncoder, outputFile);
         mGLView.setRenderer(mRenderer);
         mGLView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
@@ -680,7 +685,9 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         boolean showBox = false;
 
         // Latch the latest frame.  If there isn't anything new, we'll just re-use whatever
-        // was there before.
+        // was there before.  If we're recording, make sure the encoder is done reading the
+        // previous one first.
+        mVideoEncoder.waitForTextureRelease();
         mSurfaceTexture.updateTexImage();
 
         // If the recording state is changing, take care of it here.  Ideally we wouldn't
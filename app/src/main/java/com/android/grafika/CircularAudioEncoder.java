@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records audio from the microphone, encodes it as AAC, and holds the encoded data in a
+ * circular buffer.  Used by {@link CircularEncoder} to add a sound track to saved clips.
+ * <p>
+ * Everything happens on a dedicated audio thread, which is the only thing that adds to the
+ * buffer.  The video side tells us how far back its buffer goes by setting the eviction
+ * watermark; we discard audio older than that, so the two tracks are evicted together.  The
+ * watermark is a volatile field, so the video encoder thread never has to wait for us.
+ * <p>
+ * Requires the RECORD_AUDIO permission.
+ */
+public class CircularAudioEncoder {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final String MIME_TYPE = "audio/mp4a-latm";  // AAC
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNEL_COUNT = 1;
+    private static final int BIT_RATE = 128000;
+    private static final int BYTES_PER_SAMPLE = 2;              // 16-bit PCM, mono
+    private static final int SAMPLES_PER_FRAME = 1024;          // AAC frame size
+
+    private AudioRecord mAudioRecord;
+    private MediaCodec mEncoder;
+    private CircularEncoderBuffer mEncBuffer;
+    private volatile MediaFormat mEncodedFormat;
+
+    private AudioThread mAudioThread;
+    private volatile boolean mStopRequested;
+    private volatile long mWatermarkUsec = -1;
+
+    /**
+     * Configures the AAC encoder and audio capture.
+     *
+     * @param desiredSpanSec How many seconds of audio we want to have in our buffer.  Should
+     *     match the video buffer.
+     */
+    public CircularAudioEncoder(int desiredSpanSec) throws IOException {
+        // Audio is cheap, so we allocate twice the span.  The watermark normally keeps us
+        // well short of that, and we'd rather not run out before the video does.
+        int frameRate = (SAMPLE_RATE + SAMPLES_PER_FRAME - 1) / SAMPLES_PER_FRAME;
+        mEncBuffer = new CircularEncoderBuffer(BIT_RATE, frameRate, desiredSpanSec * 2);
+
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE,
+                CHANNEL_COUNT);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+        if (VERBOSE) Log.d(TAG, "audio format: " + format);
+
+        int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        int bufferSize = Math.max(minBufferSize, SAMPLES_PER_FRAME * BYTES_PER_SAMPLE * 16);
+        mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+            throw new IOException("unable to initialize AudioRecord");
+        }
+
+        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoder.start();
+
+        mAudioThread = new AudioThread();
+        mAudioThread.start();
+    }
+
+    /**
+     * Returns the buffer holding the encoded audio.
+     */
+    public CircularEncoderBuffer getBuffer() {
+        return mEncBuffer;
+    }
+
+    /**
+     * Returns the encoder's output format, or null if the encoder hasn't produced it yet.
+     */
+    public MediaFormat getEncodedFormat() {
+        return mEncodedFormat;
+    }
+
+    /**
+     * Sets the presentation time before which audio is no longer wanted, generally the time
+     * stamp of the oldest video sync frame.  Takes effect the next time the audio thread adds
+     * a packet.
+     */
+    public void setEvictionWatermark(long ptsUsec) {
+        mWatermarkUsec = ptsUsec;
+    }
+
+    /**
+     * Stops the audio thread and releases the encoder and audio capture.
+     * <p>
+     * Does not return until the audio thread has stopped.
+     */
+    public void shutdown() {
+        if (VERBOSE) Log.d(TAG, "releasing audio encoder objects");
+        mStopRequested = true;
+        try {
+            mAudioThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Audio thread join() was interrupted", ie);
+        }
+
+        if (mEncoder != null) {
+            mEncoder.stop();
+            mEncoder.release();
+            mEncoder = null;
+        }
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+    }
+
+    /**
+     * Feeds PCM from the AudioRecord into the encoder, and drains its output into the
+     * circular buffer, until asked to stop.
+     */
+    private class AudioThread extends Thread {
+        private static final int TIMEOUT_USEC = 10000;
+
+        private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        private long mStartTimeUsec;
+        private long mSampleCount;
+
+        AudioThread() {
+            super("CircularAudioEncoder");
+        }
+
+        @Override
+        public void run() {
+            mAudioRecord.startRecording();
+            ByteBuffer[] inputBuffers = mEncoder.getInputBuffers();
+            while (!mStopRequested) {
+                int inIndex = mEncoder.dequeueInputBuffer(TIMEOUT_USEC);
+                if (inIndex >= 0) {
+                    ByteBuffer inputBuf = inputBuffers[inIndex];
+                    inputBuf.clear();
+                    int chunkSize = Math.min(inputBuf.capacity(),
+                            SAMPLES_PER_FRAME * BYTES_PER_SAMPLE);
+                    int byteCount = mAudioRecord.read(inputBuf, chunkSize);
+                    if (byteCount < 0) {
+                        Log.w(TAG, "AudioRecord.read failed: " + byteCount);
+                        byteCount = 0;
+                    }
+
+                    // Time stamps come from the sample count, so they increase smoothly.
+                    // The camera and encoder surface use the monotonic clock, so we anchor
+                    // the first chunk to System.nanoTime() to keep the tracks lined up.
+                    if (mSampleCount == 0) {
+                        mStartTimeUsec = System.nanoTime() / 1000 -
+                                byteCount / BYTES_PER_SAMPLE * 1000000L / SAMPLE_RATE;
+                    }
+                    long ptsUsec = mStartTimeUsec + mSampleCount * 1000000L / SAMPLE_RATE;
+                    mSampleCount += byteCount / BYTES_PER_SAMPLE;
+                    mEncoder.queueInputBuffer(inIndex, 0, byteCount, ptsUsec, 0);
+                }
+                drainEncoder();
+            }
+            mAudioRecord.stop();
+            Log.d(TAG, "audio thread stopped");
+        }
+
+        /**
+         * Drains all pending output from the encoder, and adds it to the circular buffer.
+         */
+        private void drainEncoder() {
+            ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
+            while (true) {
+                int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, 0);
+                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    break;
+                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    encoderOutputBuffers = mEncoder.getOutputBuffers();
+                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // Contains the csd-0 key (the AudioSpecificConfig) for MediaMuxer.
+                    mEncodedFormat = mEncoder.getOutputFormat();
+                    Log.d(TAG, "audio encoder output format changed: " + mEncodedFormat);
+                } else if (encoderStatus < 0) {
+                    Log.w(TAG, "unexpected result from audio encoder.dequeueOutputBuffer: " +
+                            encoderStatus);
+                } else {
+                    ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        // Already captured in the output format.
+                        mBufferInfo.size = 0;
+                    }
+                    if (mBufferInfo.size != 0) {
+                        encodedData.position(mBufferInfo.offset);
+                        encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+
+                        // Every AAC frame can be decoded on its own, so mark them all as
+                        // sync frames.  That keeps the buffer's drop-until-sync logic from
+                        // stalling the track if it ever has to drop a packet.
+                        mEncBuffer.add(encodedData,
+                                mBufferInfo.flags | MediaCodec.BUFFER_FLAG_SYNC_FRAME,
+                                mBufferInfo.presentationTimeUs);
+                    }
+                    mEncoder.releaseOutputBuffer(encoderStatus, false);
+                }
+            }
+
+            long watermark = mWatermarkUsec;
+            if (watermark >= 0) {
+                mEncBuffer.removeBefore(watermark);
+            }
+        }
+    }
+}
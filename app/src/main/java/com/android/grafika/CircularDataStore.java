@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Storage for the raw data held by {@link CircularEncoderBuffer}.
+ * <p>
+ * The store presents a ring of {@link #getCapacity()} bytes.  CircularEncoderBuffer decides
+ * where each packet goes, and handles wrap-around at the end of the ring when computing
+ * offsets; the store just has to move the bytes in and out.  A packet may straddle the end of
+ * the ring, in which case it continues at offset zero.
+ * <p>
+ * Not thread-safe; CircularEncoderBuffer serializes access.
+ */
+public abstract class CircularDataStore {
+    private static final String TAG = MainActivity.TAG;
+
+    // Packets that can't be returned in place (e.g. because they wrap around the end of the
+    // ring) are copied here.  It's grown on the producer side, as packets are added, to hold
+    // the largest packet seen, so that get() doesn't have to allocate during a save.
+    private ByteBuffer mStagingBuffer;
+    private int mStagingAllocCount;
+
+    /**
+     * Returns the size of the ring, in bytes.
+     */
+    public abstract int getCapacity();
+
+    /**
+     * Copies "size" bytes from buf, starting at its current position, into the ring at
+     * "offset".  The buffer's position is advanced.
+     */
+    public abstract void put(int offset, ByteBuffer buf, int size);
+
+    /**
+     * Returns a ByteBuffer holding "length" bytes of data from the ring, starting at
+     * "offset".  The start of the data within the returned buffer is stored in info.offset.
+     * <p>
+     * The caller must not modify the contents of the returned ByteBuffer.  Altering
+     * the position and limit is allowed.  The buffer may be reused by the next call to
+     * get(), so don't hold on to it.
+     */
+    public abstract ByteBuffer get(int offset, int length, MediaCodec.BufferInfo info);
+
+    /**
+     * Makes sure the staging buffer can hold a packet of the specified size.  Called for
+     * each packet as it's added.
+     */
+    public final void ensureStagingCapacity(int size) {
+        if (mStagingBuffer == null || mStagingBuffer.capacity() < size) {
+            // Round up to a multiple of 64KB so a slowly-growing packet size doesn't cause a
+            // series of reallocations.
+            int capacity = (size + 0xffff) & ~0xffff;
+            mStagingBuffer = ByteBuffer.allocateDirect(capacity);
+            mStagingAllocCount++;
+        }
+    }
+
+    /**
+     * Returns the staging buffer, cleared and with its limit set to "length".  If the
+     * packet is larger than anything passed to {@link #ensureStagingCapacity(int)} (which
+     * shouldn't happen), it's grown here.
+     */
+    protected final ByteBuffer getStagingBuffer(int length) {
+        if (mStagingBuffer == null || mStagingBuffer.capacity() < length) {
+            Log.w(TAG, "staging buffer too small for " + length + " bytes");
+            ensureStagingCapacity(length);
+        }
+        mStagingBuffer.clear();
+        mStagingBuffer.limit(length);
+        return mStagingBuffer;
+    }
+
+    /**
+     * Returns the number of times the staging buffer has been allocated.  This should stop
+     * changing once the largest packet size has been seen.
+     */
+    public final int getStagingAllocCount() {
+        return mStagingAllocCount;
+    }
+
+    /**
+     * Notifies the store that only the data in the ring interval [liveStart, liveEnd) is
+     * still needed.  If liveStart equals liveEnd, nothing is.
+     * <p>
+     * Stores that allocate memory lazily can use this to reclaim it.  The default
+     * implementation does nothing.
+     */
+    public void trim(int liveStart, int liveEnd) {}
+
+    /**
+     * Returns a new, empty store of the same kind, with the specified capacity.  Used by
+     * CircularEncoderBuffer's adaptive sizing.  Returns null if the store can't be resized,
+     * which is what the default implementation does.
+     */
+    public CircularDataStore createResized(int capacity) {
+        return null;
+    }
+
+    /**
+     * Releases any resources held by the store.  The store must not be used afterward.
+     */
+    public void release() {}
+}
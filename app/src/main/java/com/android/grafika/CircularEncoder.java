@@ -27,6 +27,7 @@ import android.util.Log;
 import android.view.Surface;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
@@ -46,18 +47,31 @@ import java.nio.ByteBuffer;
  * it needs to scan forward for a sync frame before it can start saving data.
  * <p>
  * When we're told to save a snapshot, we create a MediaMuxer, write all the frames out,
- * and then go back to what we were doing.
+ * and then go back to what we were doing.  Alternatively, {@link #saveVideoConcurrent(File)}
+ * pins the buffered frames and does the muxing on a separate thread, so the encoder
+ * keeps draining while the file is written.
+ * <p>
+ * With {@link #setFragmentedOutput(boolean)}, saves are written as fragmented MP4 by
+ * {@link FragmentedMp4Writer} instead.  Each GOP goes to disk as it's walked, and there's
+ * no sample table to build when the file is closed.
+ * <p>
+ * Optionally, a {@link CircularAudioEncoder} records an AAC sound track into a second
+ * circular buffer.  Audio older than the oldest video sync frame is discarded, and saves cut
+ * the audio at that sync frame, so the saved clip starts in sync.
  */
 public class CircularEncoder {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
+    public static final String MIME_TYPE = "video/avc";     // H.264 Advanced Video Coding
     private static final int IFRAME_INTERVAL = 1;           // sync frame every second
+    private static final int EVENT_WAIT_MSEC = 100;         // event clip writer poll interval
 
     private EncoderThread mEncoderThread;
     private Surface mInputSurface;
     private MediaCodec mEncoder;
+    private CircularEncoderBuffer mEncBuffer;
+    private CircularAudioEncoder mAudioEncoder;
 
     /**
      * Callback function definitions.  CircularEncoder caller must provide one.
@@ -65,7 +79,9 @@ public class CircularEncoder {
     public interface Callback {
         /**
          * Called some time after saveVideo(), when all data has been written to the
-         * output file.
+         * output file.  Called on the encoder thread, or on the writer thread for
+         * concurrent saves.  There's exactly one call for each save request, including
+         * event triggers that were merged into another clip.
          *
          * @param status Zero means success, nonzero indicates failure.
          */
@@ -90,6 +106,30 @@ public class CircularEncoder {
      */
     public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
             Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, null, false, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.
+     * <p>
+     * If ringFile is non-null, the encoded data is held in a memory-mapped file instead of
+     * on the heap.  Use this for long spans (tens of minutes) that won't fit in memory.  The
+     * file is overwritten, and is not deleted on shutdown.
+     * <p>
+     * If recordAudio is set, audio from the microphone is encoded as AAC and buffered
+     * alongside the video, and saved clips will have a sound track.  This requires the
+     * RECORD_AUDIO permission.
+     *
+     * @param width Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate Target bit rate, in bits.
+     * @param frameRate Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     * @param ringFile File to hold the circular buffer, or null to use the heap.
+     * @param recordAudio If set, record and save an audio track as well.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+            File ringFile, boolean recordAudio, Callback cb) throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
@@ -103,8 +143,22 @@ public class CircularEncoder {
             throw new RuntimeException("Requested time span is too short: " + desiredSpanSec +
                     " vs. " + (IFRAME_INTERVAL * 2));
         }
-        CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bitRate, frameRate,
+        // Use segmented storage for the encoded data, so that we're not allocating a single
+        // enormous array up front, and memory use follows the actual encoded bit rate.
+        //
+        // The heap-based store can be resized, so we let the buffer adjust its size to the
+        // bit rate the encoder actually delivers.  The file-backed store stays put.
+        int dataSize = CircularEncoderBuffer.computeDataSize(bitRate, desiredSpanSec);
+        CircularDataStore dataStore;
+        if (ringFile != null) {
+            dataStore = new MappedDataStore(ringFile, dataSize);
+        } else {
+            dataStore = new SegmentedDataStore(dataSize);
+        }
+        CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(dataStore, frameRate,
                 desiredSpanSec);
+        encBuffer.setAdaptiveSizing(ringFile == null);
+        mEncBuffer = encBuffer;
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
@@ -119,14 +173,19 @@ public class CircularEncoder {
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mEncoder = CodecPool.getInstance().acquireEncoder(MIME_TYPE, width, height);
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
 
+        if (recordAudio) {
+            mAudioEncoder = new CircularAudioEncoder(desiredSpanSec);
+        }
+
         // Start the encoder thread last.  That way we're sure it can see all of the state
         // we've initialized.
-        mEncoderThread = new EncoderThread(mEncoder, encBuffer, cb);
+        mEncoderThread = new EncoderThread(mEncoder, width, height, encBuffer, mAudioEncoder,
+                cb);
         mEncoderThread.start();
         mEncoderThread.waitUntilReady();
     }
@@ -155,10 +214,23 @@ public class CircularEncoder {
         }
 
         if (mEncoder != null) {
+            // Hand the codec back to the pool, rather than releasing it, so the next
+            // recording doesn't have to wait for a new one.
             mEncoder.stop();
-            mEncoder.release();
+            CodecPool.getInstance().recycle(mEncoder);
             mEncoder = null;
         }
+        if (mAudioEncoder != null) {
+            mAudioEncoder.shutdown();
+            mAudioEncoder = null;
+        }
+        if (mEncBuffer != null) {
+            CircularEncoderBuffer.Stats stats = new CircularEncoderBuffer.Stats();
+            mEncBuffer.getStats(stats);
+            Log.d(TAG, "video buffer stats: " + stats);
+            mEncBuffer.release();
+            mEncBuffer = null;
+        }
     }
 
     /**
@@ -196,6 +268,56 @@ public class CircularEncoder {
                 EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile));
     }
 
+    /**
+     * Like {@link #saveVideo(File)}, but the muxing is performed on a separate writer
+     * thread.  The encoder thread keeps draining output and adding it to the buffer, so
+     * it's fine to keep submitting frames.
+     * <p>
+     * The frames present when the save starts are pinned in the buffer until they have been
+     * written.  If the writer falls far enough behind that the buffer fills up, new frames
+     * are dropped (up to the next sync frame) instead of overwriting pinned data.
+     * <p>
+     * Only one save may be in progress at a time.
+     */
+    public void saveVideoConcurrent(File outputFile) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO_CONCURRENT, outputFile));
+    }
+
+    /**
+     * Selects the file format for subsequent saves.  If set, saves are written as fragmented
+     * MP4 rather than with MediaMuxer.  Saves that were already requested are not affected.
+     * <p>
+     * The fragmented writer only handles video, so clips with a sound track are still
+     * written with MediaMuxer.
+     */
+    public void setFragmentedOutput(boolean fragmented) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SET_FRAGMENTED, fragmented ? 1 : 0, 0));
+    }
+
+    /**
+     * Saves an event clip, covering preMsec before now through postMsec after now, to the
+     * specified output file.  The call returns immediately.
+     * <p>
+     * Muxing is done on a separate writer thread, as with
+     * {@link #saveVideoConcurrent(File)}.  The buffered pre-trigger video is written right
+     * away, and the writer then keeps appending frames as they're encoded until the
+     * post-trigger window has passed.  The codec keeps running throughout.
+     * <p>
+     * If this is called while an earlier event clip is still being written, the earlier
+     * clip is extended to cover this event, rather than writing a second file with much of
+     * the same data, and outputFile isn't created.  The callback for this request is still
+     * made, with the earlier clip's status, once that clip is complete.
+     */
+    public void saveEvent(File outputFile, int preMsec, int postMsec) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SAVE_EVENT, preMsec, postMsec, outputFile));
+    }
+
     /**
      * Object that encapsulates the encoder thread.
      * <p>
@@ -212,25 +334,33 @@ public class CircularEncoder {
      * thread has been joined.
      */
     private static class EncoderThread extends Thread {
-        private MediaCodec mEncoder;
-        private MediaFormat mEncodedFormat;
-        private MediaCodec.BufferInfo mBufferInfo;
+        private EncoderPipeline mPipeline;
+        private EncoderPipeline.CircularBufferSink mBufferSink;
 
         private EncoderHandler mHandler;
         private CircularEncoderBuffer mEncBuffer;
+        private CircularAudioEncoder mAudioEncoder;
         private CircularEncoder.Callback mCallback;
         private int mFrameNum;
+        private Thread mWriterThread;
+        private EventClip mEventClip;       // non-null if mWriterThread is saving an event
+        private PendingEvent mPendingEvent; // event clip waiting for mWriterThread to finish
+        private boolean mFragmented;        // write saves as fragmented MP4
 
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
 
-        public EncoderThread(MediaCodec mediaCodec, CircularEncoderBuffer encBuffer,
+        public EncoderThread(MediaCodec mediaCodec, int width, int height,
+                CircularEncoderBuffer encBuffer, CircularAudioEncoder audioEncoder,
                 CircularEncoder.Callback callback) {
-            mEncoder = mediaCodec;
             mEncBuffer = encBuffer;
+            mAudioEncoder = audioEncoder;
             mCallback = callback;
 
-            mBufferInfo = new MediaCodec.BufferInfo();
+            mBufferSink = new EncoderPipeline.CircularBufferSink(encBuffer);
+            mPipeline = new EncoderPipeline(EncoderPipeline.wrap(mediaCodec), mBufferSink,
+                    width, height);
+            mPipeline.setDequeueTimeoutUsec(0);  // no timeout -- check for buffers, bail if none
         }
 
         /**
@@ -289,67 +419,15 @@ public class CircularEncoder {
          * Drains all pending output from the decoder, and adds it to the circular buffer.
          */
         public void drainEncoder() {
-            final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
-
-            ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-            while (true) {
-                int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // no output available yet
-                    break;
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    // not expected for an encoder
-                    encoderOutputBuffers = mEncoder.getOutputBuffers();
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // Should happen before receiving buffers, and should only happen once.
-                    // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
-                    // for MediaMuxer.  It's unclear what else MediaMuxer might want, so
-                    // rather than extract the codec-specific data and reconstruct a new
-                    // MediaFormat later, we just grab it here and keep it around.
-                    mEncodedFormat = mEncoder.getOutputFormat();
-                    Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
-                } else if (encoderStatus < 0) {
-                    Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
-                            encoderStatus);
-                    // let's ignore it
-                } else {
-                    ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                    if (encodedData == null) {
-                        throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                                " was null");
-                    }
-
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // The codec config data was pulled out when we got the
-                        // INFO_OUTPUT_FORMAT_CHANGED status.  The MediaMuxer won't accept
-                        // a single big blob -- it wants separate csd-0/csd-1 chunks --
-                        // so simply saving this off won't work.
-                        if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                        mBufferInfo.size = 0;
-                    }
-
-                    if (mBufferInfo.size != 0) {
-                        // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                        encodedData.position(mBufferInfo.offset);
-                        encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-
-                        mEncBuffer.add(encodedData, mBufferInfo.flags,
-                                mBufferInfo.presentationTimeUs);
-
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                    mBufferInfo.presentationTimeUs);
-                        }
-                    }
-
-                    mEncoder.releaseOutputBuffer(encoderStatus, false);
+            mPipeline.drain(false);
+        }
 
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                        break;      // out of while
-                    }
-                }
-            }
+        /**
+         * Returns the format to hand to MediaMuxer.  This is the encoder's output format if
+         * we've seen it, or one the pipeline built from the cached parameter sets if not.
+         */
+        private MediaFormat getMuxerFormat() {
+            return mBufferSink.getFormat();
         }
 
         /**
@@ -360,6 +438,10 @@ public class CircularEncoder {
         void frameAvailableSoon() {
             if (VERBOSE) Log.d(TAG, "frameAvailableSoon");
             drainEncoder();
+            if (mAudioEncoder != null) {
+                // Audio older than our oldest sync frame can never be saved.
+                mAudioEncoder.setEvictionWatermark(mEncBuffer.getFirstSyncPtsUsec());
+            }
 
             mFrameNum++;
             if ((mFrameNum % 10) == 0) {        // TODO: should base off frame rate or clock?
@@ -381,6 +463,13 @@ public class CircularEncoder {
         void saveVideo(File outputFile) {
             if (VERBOSE) Log.d(TAG, "saveVideo " + outputFile);
 
+            if (mWriterThread != null && mWriterThread.isAlive()) {
+                // The writer thread is using the buffer's staging area.
+                Log.w(TAG, "Save already in progress");
+                mCallback.fileSaveComplete(3);
+                return;
+            }
+
             int index = mEncBuffer.getFirstIndex();
             if (index < 0) {
                 Log.w(TAG, "Unable to get first index");
@@ -388,23 +477,310 @@ public class CircularEncoder {
                 return;
             }
 
+            TrackRange video = new TrackRange(mEncBuffer, getMuxerFormat(), index,
+                    mEncBuffer.getHeadIndex());
+            TrackRange audio = pinAudio(index, false);
+            int result;
+            try {
+                result = writeFile(outputFile, video, audio, null, false, mFragmented);
+            } finally {
+                if (audio != null) {
+                    audio.buffer.unpin();
+                }
+            }
+            mCallback.fileSaveComplete(result);
+        }
+
+        /**
+         * Saves the encoder output to a .mp4 file, using a separate writer thread.
+         * <p>
+         * The frames currently in the buffer are pinned, and the writer thread releases
+         * them as it goes.  The encoder thread is free to continue draining the encoder
+         * as soon as this returns.
+         */
+        void saveVideoConcurrent(File outputFile) {
+            if (VERBOSE) Log.d(TAG, "saveVideoConcurrent " + outputFile);
+
+            if (mWriterThread != null && mWriterThread.isAlive()) {
+                Log.w(TAG, "Save already in progress");
+                mCallback.fileSaveComplete(3);
+                return;
+            }
+
+            // Grab whatever the encoder has finished, then snapshot the buffer.
+            drainEncoder();
+            int firstIndex = mEncBuffer.pinFirstIndex();
+            if (firstIndex < 0) {
+                Log.w(TAG, "Unable to get first index");
+                mCallback.fileSaveComplete(1);
+                return;
+            }
+            TrackRange video = new TrackRange(mEncBuffer, getMuxerFormat(), firstIndex,
+                    mEncBuffer.getHeadIndex());
+            startWriterThread(outputFile, video, pinAudio(firstIndex, false), null);
+        }
+
+        /**
+         * Saves an event clip: the video from preMsec before now to postMsec after, using a
+         * separate writer thread.
+         * <p>
+         * The pre-trigger part is written right away.  The writer then follows the encoder
+         * output, appending packets as they arrive, until it sees one past the end of the
+         * post-trigger window.
+         * <p>
+         * If an event clip is already being written, we extend it to cover this event
+         * instead of starting a new file.
+         */
+        void saveEvent(File outputFile, int preMsec, int postMsec) {
+            if (VERBOSE) Log.d(TAG, "saveEvent " + outputFile + " pre=" + preMsec +
+                    " post=" + postMsec);
+
+            drainEncoder();
+            long nowUsec = mEncBuffer.getLastPtsUsec();
+            if (nowUsec < 0) {
+                Log.w(TAG, "No video buffered");
+                mCallback.fileSaveComplete(1);
+                return;
+            }
+            long startPtsUsec = nowUsec - preMsec * 1000L;
+            long endPtsUsec = nowUsec + postMsec * 1000L;
+
+            if (mPendingEvent != null) {
+                // Still waiting for the last writer to wrap up.  Make that clip cover this
+                // event too.
+                mPendingEvent.clip.extend(endPtsUsec);
+                Log.d(TAG, "Merged event into pending clip");
+                return;
+            }
+            if (mWriterThread != null && mWriterThread.isAlive()) {
+                if (mEventClip != null && mEventClip.extend(endPtsUsec)) {
+                    // Merged into the clip being written.  Its writer makes our callback.
+                    Log.d(TAG, "Merged event into clip in progress");
+                } else if (mEventClip != null) {
+                    // The clip just finished, but the writer hasn't quite wrapped up.  Waiting
+                    // for it here would stop us draining the encoder, so start the new clip
+                    // when the writer tells us it's done.
+                    mPendingEvent = new PendingEvent(outputFile, startPtsUsec,
+                            new EventClip(endPtsUsec));
+                } else {
+                    Log.w(TAG, "Save already in progress");
+                    mCallback.fileSaveComplete(3);
+                }
+                return;
+            }
+            startEventClip(outputFile, startPtsUsec, new EventClip(endPtsUsec));
+        }
+
+        /**
+         * Starts the writer thread on an event clip that begins at the last sync frame at
+         * or before startPtsUsec.  The writer thread must not be running.
+         */
+        private void startEventClip(File outputFile, long startPtsUsec, EventClip eventClip) {
+            int firstIndex = mEncBuffer.getSyncIndexAtOrBefore(startPtsUsec);
+            if (firstIndex < 0) {
+                // Don't have that much buffered; start as early as we can.
+                firstIndex = mEncBuffer.getFirstIndex();
+            }
+            if (firstIndex < 0) {
+                Log.w(TAG, "Unable to get first index");
+                reportSaveComplete(mCallback, 1, eventClip);
+                return;
+            }
+            mEncBuffer.pin(firstIndex);
+
+            TrackRange video = new TrackRange(mEncBuffer, getMuxerFormat(), firstIndex, -1);
+            startWriterThread(outputFile, video, pinAudio(firstIndex, true), eventClip);
+        }
+
+        /**
+         * Starts a writer thread for a concurrent save.  The ranges must already be pinned;
+         * the writer unpins them when it's done.
+         * <p>
+         * When it's finished, the writer sends MSG_WRITER_DONE, so we can reap it without
+         * having to wait for it on this thread.
+         */
+        private void startWriterThread(final File outputFile, final TrackRange video,
+                final TrackRange audio, final EventClip eventClip) {
+            final CircularEncoder.Callback callback = mCallback;
+            final boolean fragmented = mFragmented;
+            final Handler handler = mHandler;
+
+            mEventClip = eventClip;
+            mWriterThread = new Thread("CircularEncoder writer") {
+                @Override
+                public void run() {
+                    int result;
+                    try {
+                        result = writeFile(outputFile, video, audio, eventClip, true,
+                                fragmented);
+                    } catch (RuntimeException re) {
+                        // e.g. MediaMuxer rejecting a sample.  Don't take the app down
+                        // over a failed save.
+                        Log.e(TAG, "writer failed", re);
+                        result = 2;
+                    } finally {
+                        video.buffer.unpin();
+                        if (audio != null) {
+                            audio.buffer.unpin();
+                        }
+                    }
+                    reportSaveComplete(callback, result, eventClip);
+                    handler.sendMessage(handler.obtainMessage(
+                            EncoderHandler.MSG_WRITER_DONE, this));
+                }
+            };
+            mWriterThread.start();
+        }
+
+        /**
+         * Reaps a writer thread that has finished, and starts the pending event clip, if
+         * there is one.
+         */
+        void writerDone(Thread writerThread) {
+            if (writerThread != mWriterThread) {
+                return;     // already joined
+            }
+            joinWriterThread();     // it's on its way out, so this won't take long
+            if (mPendingEvent != null) {
+                PendingEvent pending = mPendingEvent;
+                mPendingEvent = null;
+                startEventClip(pending.outputFile, pending.startPtsUsec, pending.clip);
+            }
+        }
+
+        /**
+         * Makes the callback for a save request, and for any event triggers that were
+         * merged into it.
+         */
+        private static void reportSaveComplete(CircularEncoder.Callback callback, int status,
+                EventClip eventClip) {
+            int count = 1;
+            if (eventClip != null) {
+                count += eventClip.finish();
+            }
+            for (int i = 0; i < count; i++) {
+                callback.fileSaveComplete(status);
+            }
+        }
+
+        /**
+         * Waits for the writer thread, if any, to finish.
+         */
+        private void joinWriterThread() {
+            if (mWriterThread != null) {
+                try {
+                    mWriterThread.join();
+                } catch (InterruptedException ie) {
+                    Log.w(TAG, "Writer thread join() was interrupted", ie);
+                }
+                mWriterThread = null;
+                mEventClip = null;
+            }
+        }
+
+        /**
+         * Pins the buffered audio that goes with the video starting at videoIndex, and
+         * returns it.  Returns null if we're not recording audio, or have none buffered.
+         *
+         * @param live If set, the range is open-ended, for an event clip.  Otherwise it
+         *     ends with the last buffered video frame.
+         */
+        private TrackRange pinAudio(int videoIndex, boolean live) {
+            if (mAudioEncoder == null) {
+                return null;
+            }
+            MediaFormat format = mAudioEncoder.getEncodedFormat();
+            if (format == null) {
+                Log.w(TAG, "No audio format yet, saving video only");
+                return null;
+            }
+
+            // Start with the first audio packet at or after the video sync frame, so the
+            // clip starts in sync, and stop at the last video frame.
             MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            mEncBuffer.getChunk(videoIndex, info);
+            long startPtsUsec = info.presentationTimeUs;
+
+            CircularEncoderBuffer audioBuffer = mAudioEncoder.getBuffer();
+            int firstIndex = audioBuffer.pinFirstIndexAtOrAfter(startPtsUsec);
+            if (firstIndex < 0) {
+                Log.w(TAG, "No audio in range, saving video only");
+                return null;
+            }
+            if (live) {
+                return new TrackRange(audioBuffer, format, firstIndex, -1);
+            }
+            int endIndex = audioBuffer.getEndIndex(mEncBuffer.getLastPtsUsec());
+            if (endIndex == firstIndex) {
+                Log.w(TAG, "No audio in range, saving video only");
+                audioBuffer.unpin();
+                return null;
+            }
+            return new TrackRange(audioBuffer, format, firstIndex, endIndex);
+        }
+
+        /**
+         * Writes the packets in the video range, and the audio range if non-null, to a .mp4
+         * file.  Audio packets are interleaved with the video in time stamp order.
+         * <p>
+         * If eventClip is non-null, the ranges are open-ended: we keep waiting for new
+         * packets until the video passes the end of the event.
+         *
+         * @param movePin If set, advance each buffer's pin past each packet once written.
+         * @param fragmented If set, and there's no audio, write a fragmented MP4.
+         * @return Zero on success, nonzero on failure.
+         */
+        private static int writeFile(File outputFile, TrackRange video, TrackRange audio,
+                EventClip eventClip, boolean movePin, boolean fragmented) {
+            if (fragmented) {
+                if (audio == null) {
+                    return writeFragmentedFile(outputFile, video, eventClip, movePin);
+                }
+                Log.w(TAG, "Fragmented output is video-only, using MediaMuxer");
+            }
+
+            MediaCodec.BufferInfo videoInfo = new MediaCodec.BufferInfo();
             MediaMuxer muxer = null;
             int result = -1;
             try {
                 muxer = new MediaMuxer(outputFile.getPath(),
                         MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                int videoTrack = muxer.addTrack(mEncodedFormat);
+                int videoTrack = muxer.addTrack(video.format);
+                AudioCursor audioCursor = null;
+                if (audio != null) {
+                    audioCursor = new AudioCursor(audio, muxer.addTrack(audio.format),
+                            movePin);
+                }
                 muxer.start();
 
-                do {
-                    ByteBuffer buf = mEncBuffer.getChunk(index, info);
+                int index = video.firstIndex;
+                long lastPtsUsec = 0;
+                while (true) {
+                    ByteBuffer buf = video.buffer.getChunk(index, videoInfo);
+                    if (eventClip != null && !eventClip.includes(videoInfo.presentationTimeUs)) {
+                        break;
+                    }
+                    if (audioCursor != null) {
+                        audioCursor.writeBefore(muxer, videoInfo.presentationTimeUs);
+                    }
                     if (VERBOSE) {
-                        Log.d(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(info.flags));
+                        Log.d(TAG, "SAVE " + index + " flags=0x" +
+                                Integer.toHexString(videoInfo.flags));
+                    }
+                    muxer.writeSampleData(videoTrack, buf, videoInfo);
+                    lastPtsUsec = videoInfo.presentationTimeUs;
+
+                    index = getNextVideoIndex(video, index, eventClip);
+                    if (index < 0) {
+                        break;
+                    }
+                    if (movePin) {
+                        video.buffer.movePin(index);
                     }
-                    muxer.writeSampleData(videoTrack, buf, info);
-                    index = mEncBuffer.getNextIndex(index);
-                } while (index >= 0);
+                }
+                if (audioCursor != null) {
+                    audioCursor.writeBefore(muxer, lastPtsUsec + 1);
+                }
                 result = 0;
             } catch (IOException ioe) {
                 Log.w(TAG, "muxer failed", ioe);
@@ -419,7 +795,94 @@ public class CircularEncoder {
             if (VERBOSE) {
                 Log.d(TAG, "muxer stopped, result=" + result);
             }
-            mCallback.fileSaveComplete(result);
+            return result;
+        }
+
+        /**
+         * Writes the packets in the video range to a fragmented .mp4 file.  Otherwise
+         * the same as {@link #writeFile}.
+         */
+        private static int writeFragmentedFile(File outputFile, TrackRange video,
+                EventClip eventClip, boolean movePin) {
+            MediaFormat format = video.format;
+            if (format == null || !format.containsKey("csd-0") ||
+                    !format.containsKey("csd-1")) {
+                Log.w(TAG, "No parameter sets, can't write fragmented file");
+                return 2;
+            }
+            byte[] sps = getBytes(format.getByteBuffer("csd-0"));
+            byte[] pps = getBytes(format.getByteBuffer("csd-1"));
+
+            MediaCodec.BufferInfo videoInfo = new MediaCodec.BufferInfo();
+            FileOutputStream out = null;
+            int result = -1;
+            try {
+                out = new FileOutputStream(outputFile);
+                FragmentedMp4Writer writer = new FragmentedMp4Writer(out.getChannel(),
+                        format.getInteger(MediaFormat.KEY_WIDTH),
+                        format.getInteger(MediaFormat.KEY_HEIGHT), sps, pps);
+
+                int index = video.firstIndex;
+                while (true) {
+                    ByteBuffer buf = video.buffer.getChunk(index, videoInfo);
+                    if (eventClip != null && !eventClip.includes(videoInfo.presentationTimeUs)) {
+                        break;
+                    }
+                    writer.addSample(buf, videoInfo.offset, videoInfo.size,
+                            videoInfo.presentationTimeUs,
+                            (videoInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+
+                    index = getNextVideoIndex(video, index, eventClip);
+                    if (index < 0) {
+                        break;
+                    }
+                    if (movePin) {
+                        video.buffer.movePin(index);
+                    }
+                }
+                writer.finish();
+                if (VERBOSE) Log.d(TAG, "wrote " + writer.getBytesWritten() + " bytes");
+                result = 0;
+            } catch (IOException ioe) {
+                Log.w(TAG, "fragmented write failed", ioe);
+                result = 2;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException ioe) {
+                        Log.w(TAG, "failed closing " + outputFile, ioe);
+                        result = 2;
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the index of the video packet after index, or -1 if the range is done.
+         * For event clips, this waits for the encoder to produce the next packet.
+         */
+        private static int getNextVideoIndex(TrackRange video, int index,
+                EventClip eventClip) {
+            if (eventClip == null) {
+                return video.buffer.getNextIndex(index, video.endIndex);
+            }
+            int next;
+            do {
+                next = video.buffer.waitForNextIndex(index, EVENT_WAIT_MSEC);
+            } while (next < 0 && !eventClip.isCancelled());
+            return next;
+        }
+
+        /**
+         * Copies the remaining contents of a ByteBuffer, leaving its position alone.
+         */
+        private static byte[] getBytes(ByteBuffer buf) {
+            ByteBuffer dup = buf.duplicate();
+            byte[] bytes = new byte[dup.remaining()];
+            dup.get(bytes);
+            return bytes;
         }
 
         /**
@@ -427,9 +890,168 @@ public class CircularEncoder {
          */
         void shutdown() {
             if (VERBOSE) Log.d(TAG, "shutdown");
+            if (mEventClip != null) {
+                // No more video is coming, so wrap up the event clip with what we have.
+                mEventClip.cancel();
+            }
+            // Let an in-progress concurrent save finish writing its file.
+            joinWriterThread();
+            if (mPendingEvent != null) {
+                // Write what we have for the pending clip too.
+                PendingEvent pending = mPendingEvent;
+                mPendingEvent = null;
+                pending.clip.cancel();
+                startEventClip(pending.outputFile, pending.startPtsUsec, pending.clip);
+                joinWriterThread();
+            }
             Looper.myLooper().quit();
         }
 
+        /**
+         * The packets from one buffer that go into a saved file: [firstIndex, endIndex).
+         * An endIndex of -1 means the range is open-ended.
+         */
+        private static class TrackRange {
+            final CircularEncoderBuffer buffer;
+            final MediaFormat format;
+            final int firstIndex;
+            final int endIndex;
+
+            TrackRange(CircularEncoderBuffer buffer, MediaFormat format, int firstIndex,
+                    int endIndex) {
+                this.buffer = buffer;
+                this.format = format;
+                this.firstIndex = firstIndex;
+                this.endIndex = endIndex;
+            }
+        }
+
+        /**
+         * Tracks progress through the audio range while the video drives the save.
+         * <p>
+         * Audio comes out of its encoder a little behind the video, so for open-ended ranges
+         * the next audio packet may not have arrived yet when we want it.  In that case we
+         * just try again before the next video frame.
+         */
+        private static class AudioCursor {
+            private final TrackRange mRange;
+            private final int mTrack;
+            private final boolean mMovePin;
+            private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+            private int mLastIndex = -1;    // last packet written
+            private int mNextIndex;         // next packet to write, or -1 if not yet known
+
+            AudioCursor(TrackRange range, int track, boolean movePin) {
+                mRange = range;
+                mTrack = track;
+                mMovePin = movePin;
+                mNextIndex = range.firstIndex;
+            }
+
+            /**
+             * Writes the available audio packets with a time stamp before ptsUsec.
+             */
+            void writeBefore(MediaMuxer muxer, long ptsUsec) {
+                CircularEncoderBuffer buffer = mRange.buffer;
+                while (true) {
+                    if (mNextIndex < 0) {
+                        int endIndex = (mRange.endIndex >= 0) ?
+                                mRange.endIndex : buffer.getHeadIndex();
+                        mNextIndex = buffer.getNextIndex(mLastIndex, endIndex);
+                        if (mNextIndex < 0) {
+                            return;
+                        }
+                        if (mMovePin) {
+                            buffer.movePin(mNextIndex);
+                        }
+                    }
+                    ByteBuffer buf = buffer.getChunk(mNextIndex, mInfo);
+                    if (mInfo.presentationTimeUs >= ptsUsec) {
+                        return;
+                    }
+                    muxer.writeSampleData(mTrack, buf, mInfo);
+                    mLastIndex = mNextIndex;
+                    mNextIndex = -1;
+                }
+            }
+        }
+
+        /**
+         * The time span of an event clip that's being written.  The end may be pushed back
+         * by later, overlapping events.
+         * <p>
+         * Shared between the encoder thread and the writer thread.
+         */
+        private static class EventClip {
+            private long mEndPtsUsec;
+            private boolean mFinished;
+            private int mMergedCount;
+            private volatile boolean mCancelled;
+
+            EventClip(long endPtsUsec) {
+                mEndPtsUsec = endPtsUsec;
+            }
+
+            /**
+             * Returns true if a packet with this time stamp belongs in the clip.  Once this
+             * returns false, the clip is finished and can no longer be extended.
+             */
+            synchronized boolean includes(long ptsUsec) {
+                if (ptsUsec > mEndPtsUsec) {
+                    mFinished = true;
+                }
+                return !mFinished;
+            }
+
+            /**
+             * Moves the end of the clip to endPtsUsec, if that's later.  Returns false if the
+             * clip has already finished.
+             */
+            synchronized boolean extend(long endPtsUsec) {
+                if (mFinished) {
+                    return false;
+                }
+                mEndPtsUsec = Math.max(mEndPtsUsec, endPtsUsec);
+                mMergedCount++;
+                return true;
+            }
+
+            /**
+             * Marks the clip finished, so it can't be extended any further.  Returns the
+             * number of events merged into it, each of which is owed a callback.
+             */
+            synchronized int finish() {
+                mFinished = true;
+                return mMergedCount;
+            }
+
+            /**
+             * Tells the writer to stop waiting for more packets.
+             */
+            void cancel() {
+                mCancelled = true;
+            }
+
+            boolean isCancelled() {
+                return mCancelled;
+            }
+        }
+
+        /**
+         * An event clip that's waiting for the writer thread to become free.
+         */
+        private static class PendingEvent {
+            final File outputFile;
+            final long startPtsUsec;
+            final EventClip clip;
+
+            PendingEvent(File outputFile, long startPtsUsec, EventClip clip) {
+                this.outputFile = outputFile;
+                this.startPtsUsec = startPtsUsec;
+                this.clip = clip;
+            }
+        }
+
         /**
          * Handler for EncoderThread.  Used for messages sent from the UI thread (or whatever
          * is driving the encoder) to the encoder thread.
@@ -440,6 +1062,10 @@ public class CircularEncoder {
             public static final int MSG_FRAME_AVAILABLE_SOON = 1;
             public static final int MSG_SAVE_VIDEO = 2;
             public static final int MSG_SHUTDOWN = 3;
+            public static final int MSG_SAVE_VIDEO_CONCURRENT = 4;
+            public static final int MSG_SAVE_EVENT = 5;
+            public static final int MSG_SET_FRAGMENTED = 6;
+            public static final int MSG_WRITER_DONE = 7;
 
             // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
             // but no real harm in it.
@@ -472,6 +1098,18 @@ public class CircularEncoder {
                     case MSG_SAVE_VIDEO:
                         encoderThread.saveVideo((File) msg.obj);
                         break;
+                    case MSG_SAVE_VIDEO_CONCURRENT:
+                        encoderThread.saveVideoConcurrent((File) msg.obj);
+                        break;
+                    case MSG_SAVE_EVENT:
+                        encoderThread.saveEvent((File) msg.obj, msg.arg1, msg.arg2);
+                        break;
+                    case MSG_SET_FRAGMENTED:
+                        encoderThread.mFragmented = (msg.arg1 != 0);
+                        break;
+                    case MSG_WRITER_DONE:
+                        encoderThread.writerDone((Thread) msg.obj);
+                        break;
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
                         break;
@@ -27,26 +27,37 @@ import java.nio.ByteBuffer;
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
  * (flags and PTS).
  * <p>
- * Not thread-safe.
+ * The public methods are synchronized, so a save can read packets on one thread while the
+ * encoder thread continues to add them on another.  To keep the reader's packets from
+ * being evicted out from under it, the reader pins the oldest packet it still needs (see
+ * {@link #pinFirstIndex()}).  If the buffer fills up while pinned, incoming packets are
+ * dropped until the next sync frame, rather than overwriting pinned data.
+ * <p>
+ * The positions of sync frames are tracked in a third circular buffer, which lets us find
+ * the oldest sync frame without scanning.  Presentation time stamps are assumed to increase
+ * monotonically (true for encoders that don't generate B-frames), so packets can be looked
+ * up by time with a binary search.
+ * <p>
+ * Evictions, data use, and the largest packet seen are counted as we go; see
+ * {@link #getStats(Stats)}.  Because the data buffer is sized from the requested bit rate,
+ * and encoders don't always hit it, there's an optional adaptive mode that resizes the data
+ * store to fit the measured bit rate (see {@link #setAdaptiveSizing(boolean)}).
  */
 public class CircularEncoderBuffer {
     private static final String TAG = MainActivity.TAG;
     private static final boolean EXTRA_DEBUG = true;
     private static final boolean VERBOSE = false;
 
-    // Raw data (e.g. AVC NAL units) held here.
-    //
-    // The MediaMuxer writeSampleData() function takes a ByteBuffer.  If it's a "direct"
-    // ByteBuffer it'll access the data directly, if it's a regular ByteBuffer it'll use
-    // JNI functions to access the backing byte[] (which, in the current VM, is done without
-    // copying the data).
-    //
-    // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
-    // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
-    private ByteBuffer mDataBufferWrapper;
-    private byte[] mDataBuffer;
+    // Results from canAdd().
+    private static final int ADD_OK = 0;
+    private static final int ADD_NO_META = 1;
+    private static final int ADD_NO_DATA = 2;
+
+    // Adaptive sizing doesn't trust a bit rate measured over less than this much video.
+    private static final long MIN_MEASURE_USEC = 1000000;
+
+    // Raw data (e.g. AVC NAL units) held here.  See CircularDataStore.
+    private CircularDataStore mDataStore;
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
@@ -54,23 +65,60 @@ public class CircularEncoderBuffer {
     private long[] mPacketPtsUsec;
     private int[] mPacketStart;
     private int[] mPacketLength;
+    private int[] mPacketContents;      // AvcNalParser CONTAINS_* bits, or zero if unknown
 
     // Data is added at head and removed from tail.  Head points to an empty node, so if
     // head==tail the list is empty.
     private int mMetaHead;
     private int mMetaTail;
 
+    // Meta-data indices of the sync frames currently in the buffer, oldest first.  This is
+    // kept in step with the meta-data as packets are added and removed.  It's the same
+    // size as the meta-data arrays, so it can't overflow even if every packet is a sync frame.
+    private int[] mSyncIndices;
+    private int mSyncHead;
+    private int mSyncTail;
+
+    // Oldest packet that a concurrent save still needs, or -1 if nothing is pinned.  The
+    // tail is never advanced past this.
+    private int mPinnedIndex = -1;
+
+    // Set when we had to drop a packet because the tail was pinned.  Everything up to the
+    // next sync frame is dropped too, since it can't be decoded without the missing data.
+    private boolean mDropUntilSync;
+    private int mDroppedCount;
+
+    // Statistics.  These are plain counters, updated as we go, so they can be left on.
+    private int mEvictedForDataCount;
+    private int mEvictedForMetaCount;
+    private int mRemovedBeforeCount;
+    private int mMaxPacketSize;
+    private int mResizeCount;
+
+    // Adaptive sizing state.  See setAdaptiveSizing().
+    private final long mDesiredSpanUsec;
+    private boolean mAdaptiveSizing;
+    private int mLastCheckEvictedForData;
+    private long mLastResizePtsUsec = -1;
+    private MediaCodec.BufferInfo mResizeInfo;
+
     /**
      * Allocates the circular buffers we use for encoded data and meta-data.
      */
     public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
-        // For the encoded data, we assume the encoded bit rate is close to what we request.
-        //
-        // There would be a minor performance advantage to using a power of two here, because
-        // not all ARM CPUs support integer modulus.
-        int dataBufferSize = bitRate * desiredSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+        this(new ArrayDataStore(computeDataSize(bitRate, desiredSpanSec)), frameRate,
+                desiredSpanSec);
+    }
+
+    /**
+     * Allocates the circular buffer for meta-data, and uses the provided store for the
+     * encoded data.
+     */
+    public CircularEncoderBuffer(CircularDataStore dataStore, int frameRate,
+            int desiredSpanSec) {
+        mDataStore = dataStore;
+        mDesiredSpanUsec = desiredSpanSec * 1000000L;
+        int dataBufferSize = dataStore.getCapacity();
 
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
@@ -80,19 +128,65 @@ public class CircularEncoderBuffer {
         mPacketPtsUsec = new long[metaBufferCount];
         mPacketStart = new int[metaBufferCount];
         mPacketLength = new int[metaBufferCount];
+        mPacketContents = new int[metaBufferCount];
+        mSyncIndices = new int[metaBufferCount];
 
         if (VERBOSE) {
-            Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
+            Log.d(TAG, "CBE: frameRate=" + frameRate +
                     " desiredSpan=" + desiredSpanSec + ": dataBufferSize=" + dataBufferSize +
                 " metaBufferCount=" + metaBufferCount);
         }
     }
 
+    /**
+     * Computes the data buffer size needed to hold desiredSpanSec worth of data.
+     */
+    public static int computeDataSize(int bitRate, int desiredSpanSec) {
+        // For the encoded data, we assume the encoded bit rate is close to what we request.
+        //
+        // There would be a minor performance advantage to using a power of two here, because
+        // not all ARM CPUs support integer modulus.
+        long size = (long) bitRate * desiredSpanSec / 8;
+        if (size > Integer.MAX_VALUE) {
+            throw new RuntimeException("Buffer too large: " + size + " bytes");
+        }
+        return (int) size;
+    }
+
+    /**
+     * Enables or disables adaptive sizing.  Disabled by default.
+     * <p>
+     * When enabled, the bit rate is measured from the buffered data each time a sync frame
+     * arrives.  If the ring is evicting packets before it holds desiredSpanSec of video, or
+     * holds the full span in far less space than it has, the data store is replaced with
+     * one sized for the measured rate, and the buffered packets are compacted into it.  This
+     * only happens while nothing is pinned, and at most once per span.
+     * <p>
+     * The data store must support {@link CircularDataStore#createResized(int)}; if it
+     * doesn't, this has no effect.
+     */
+    public synchronized void setAdaptiveSizing(boolean enabled) {
+        mAdaptiveSizing = enabled;
+        if (enabled && mResizeInfo == null) {
+            mResizeInfo = new MediaCodec.BufferInfo();
+        }
+    }
+
+    /**
+     * Releases the data store.  The buffer must not be used afterward.
+     */
+    public synchronized void release() {
+        if (mDataStore != null) {
+            mDataStore.release();
+            mDataStore = null;
+        }
+    }
+
     /**
      * Computes the amount of time spanned by the buffered data, based on the presentation
      * time stamps.
      */
-    public long computeTimeSpanUsec() {
+    public synchronized long computeTimeSpanUsec() {
         final int metaLen = mPacketStart.length;
 
         if (mMetaHead == mMetaTail) {
@@ -113,37 +207,76 @@ public class CircularEncoderBuffer {
      * @param size Number of bytes in the packet.
      * @param flags MediaCodec.BufferInfo flags.
      * @param ptsUsec Presentation time stamp, in microseconds.
+     * @return False if the packet was dropped because the space it needs is pinned.
      */
-    public void add(ByteBuffer buf, int flags, long ptsUsec) {
+    public boolean add(ByteBuffer buf, int flags, long ptsUsec) {
+        return add(buf, flags, ptsUsec, 0);
+    }
+
+    /**
+     * Adds a new encoded data packet to the buffer, along with a description of its contents.
+     *
+     * @param contents The packet's AvcNalParser CONTAINS_* bits.
+     * @see #add(ByteBuffer, int, long)
+     */
+    public synchronized boolean add(ByteBuffer buf, int flags, long ptsUsec, int contents) {
         int size = buf.limit() - buf.position();
         if (VERBOSE) {
             Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
                     " pts=" + ptsUsec);
         }
-        while (!canAdd(size)) {
+        if (mDropUntilSync) {
+            if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                mDroppedCount++;
+                return false;
+            }
+            mDropUntilSync = false;
+        }
+        if (size > mMaxPacketSize) {
+            mMaxPacketSize = size;
+        }
+        if (mAdaptiveSizing && (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0 &&
+                mPinnedIndex < 0) {
+            checkSize(ptsUsec);
+        }
+        boolean removed = false;
+        int status;
+        while ((status = canAdd(size)) != ADD_OK) {
+            if (mMetaTail == mPinnedIndex) {
+                // Can't make room without evicting data the writer hasn't saved yet.
+                if (VERBOSE) Log.v(TAG, "tail pinned, dropping packet pts=" + ptsUsec);
+                mDropUntilSync = true;
+                mDroppedCount++;
+                return false;
+            }
+            if (status == ADD_NO_META) {
+                mEvictedForMetaCount++;
+            } else {
+                mEvictedForDataCount++;
+            }
             removeTail();
+            removed = true;
         }
 
-        final int dataLen = mDataBuffer.length;
         final int metaLen = mPacketStart.length;
         int packetStart = getHeadStart();
+        if (removed) {
+            // Let the data store reclaim whatever the evicted packets were using.
+            mDataStore.trim(mMetaHead == mMetaTail ? 0 : mPacketStart[mMetaTail], packetStart);
+        }
         mPacketFlags[mMetaHead] = flags;
         mPacketPtsUsec[mMetaHead] = ptsUsec;
         mPacketStart[mMetaHead] = packetStart;
         mPacketLength[mMetaHead] = size;
-
-        // Copy the data in.  Take care if it gets split in half.
-        if (packetStart + size < dataLen) {
-            // one chunk
-            buf.get(mDataBuffer, packetStart, size);
-        } else {
-            // two chunks
-            int firstSize = dataLen - packetStart;
-            if (VERBOSE) { Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size); }
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+        mPacketContents[mMetaHead] = contents;
+        if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            mSyncIndices[mSyncHead] = mMetaHead;
+            mSyncHead = (mSyncHead + 1) % mSyncIndices.length;
         }
 
+        mDataStore.ensureStagingCapacity(size);
+        mDataStore.put(packetStart, buf, size);
+
         mMetaHead = (mMetaHead + 1) % metaLen;
 
         if (EXTRA_DEBUG) {
@@ -153,6 +286,62 @@ public class CircularEncoderBuffer {
             mPacketStart[mMetaHead] = -100000;
             mPacketLength[mMetaHead] = Integer.MAX_VALUE;
         }
+
+        // Wake up anybody in waitForNextIndex().
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Returns the AvcNalParser CONTAINS_* bits recorded for the packet, or zero if the
+     * packet was added without them.
+     */
+    public synchronized int getContents(int index) {
+        return mPacketContents[index];
+    }
+
+    /**
+     * Returns the presentation time stamp of the newest packet, or -1 if the buffer is empty.
+     */
+    public synchronized long getLastPtsUsec() {
+        final int metaLen = mPacketStart.length;
+
+        if (mMetaHead == mMetaTail) {
+            return -1;
+        }
+        int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
+        return mPacketPtsUsec[beforeHead];
+    }
+
+    /**
+     * Returns the presentation time stamp of the oldest sync frame, or -1 if there isn't one.
+     */
+    public synchronized long getFirstSyncPtsUsec() {
+        if (mSyncHead == mSyncTail) {
+            return -1;
+        }
+        return mPacketPtsUsec[mSyncIndices[mSyncTail]];
+    }
+
+    /**
+     * Removes packets with a presentation time stamp before ptsUsec.  Packets at or after
+     * the pinned packet, if any, are kept.
+     * <p>
+     * Used to keep a secondary track (e.g. audio) from holding data older than the start of
+     * the primary track.
+     */
+    public synchronized void removeBefore(long ptsUsec) {
+        boolean removed = false;
+        while (mMetaHead != mMetaTail && mMetaTail != mPinnedIndex &&
+                mPacketPtsUsec[mMetaTail] < ptsUsec) {
+            removeTail();
+            mRemovedBeforeCount++;
+            removed = true;
+        }
+        if (removed) {
+            mDataStore.trim(mMetaHead == mMetaTail ? 0 : mPacketStart[mMetaTail],
+                    getHeadStart());
+        }
     }
 
     /**
@@ -160,65 +349,262 @@ public class CircularEncoderBuffer {
      * <p>
      * When sending output to a MediaMuxer, start here.
      */
-    public int getFirstIndex() {
-        final int metaLen = mPacketStart.length;
+    public synchronized int getFirstIndex() {
+        if (mSyncHead == mSyncTail) {
+            Log.w(TAG, "HEY: could not find sync frame in buffer");
+            return -1;
+        }
+        return mSyncIndices[mSyncTail];
+    }
 
-        int index = mMetaTail;
-        while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-                break;
+    /**
+     * Returns the index of the most recent sync frame with a presentation time stamp at or
+     * before ptsUsec, or -1 if there isn't one.  Valid until the next add().
+     * <p>
+     * To save the video starting at a particular time, start here.
+     */
+    public synchronized int getSyncIndexAtOrBefore(long ptsUsec) {
+        final int syncLen = mSyncIndices.length;
+        int syncCount = (mSyncHead + syncLen - mSyncTail) % syncLen;
+
+        // Binary search for the number of sync frames with PTS <= ptsUsec.
+        int lo = 0;
+        int hi = syncCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int index = mSyncIndices[(mSyncTail + mid) % syncLen];
+            if (mPacketPtsUsec[index] <= ptsUsec) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
             }
-            index = (index + 1) % metaLen;
         }
+        if (lo == 0) {
+            return -1;
+        }
+        return mSyncIndices[(mSyncTail + lo - 1) % syncLen];
+    }
 
-        if (index == mMetaHead) {
-            Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+    /**
+     * Returns the index one past the last packet with a presentation time stamp at or
+     * before ptsUsec.  Valid until the next add().
+     * <p>
+     * The result is suitable for use as the end index in {@link #getNextIndex(int, int)}.
+     * If every packet is at or before ptsUsec, this is the same as {@link #getHeadIndex()}.
+     */
+    public synchronized int getEndIndex(long ptsUsec) {
+        final int metaLen = mPacketStart.length;
+        int packetCount = (mMetaHead + metaLen - mMetaTail) % metaLen;
+
+        // Binary search for the number of packets with PTS <= ptsUsec.
+        int lo = 0;
+        int hi = packetCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mPacketPtsUsec[(mMetaTail + mid) % metaLen] <= ptsUsec) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
         }
-        return index;
+        return (mMetaTail + lo) % metaLen;
     }
 
     /**
      * Returns the index of the next packet, or -1 if we've reached the end.
      */
-    public int getNextIndex(int index) {
+    public synchronized int getNextIndex(int index) {
+        return getNextIndex(index, mMetaHead);
+    }
+
+    /**
+     * Returns the index of the next packet, or -1 if we've reached endIndex.
+     * <p>
+     * Used by concurrent saves, which stop at the head index captured when the save started
+     * rather than chasing packets that were added afterward.
+     */
+    public synchronized int getNextIndex(int index, int endIndex) {
         final int metaLen = mPacketStart.length;
         int next = (index + 1) % metaLen;
-        if (next == mMetaHead) {
+        if (next == endIndex) {
             next = -1;
         }
         return next;
     }
 
     /**
-     * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
-     * BufferInfo.
+     * Like {@link #getNextIndex(int)}, but if there is no next packet yet, waits up to
+     * timeoutMsec for one to be added.  Returns -1 on timeout.
+     */
+    public synchronized int waitForNextIndex(int index, long timeoutMsec) {
+        int next = getNextIndex(index);
+        if (next < 0) {
+            try {
+                wait(timeoutMsec);
+            } catch (InterruptedException ie) { /* not expected */ }
+            next = getNextIndex(index);
+        }
+        return next;
+    }
+
+    /**
+     * Returns the index one past the most recently added packet.  Pass this to
+     * {@link #getNextIndex(int, int)} to iterate over a snapshot of the buffer.
+     */
+    public synchronized int getHeadIndex() {
+        return mMetaHead;
+    }
+
+    /**
+     * Returns the index of the oldest sync frame, and pins it so that neither it nor any
+     * packet after it will be evicted.  Returns -1, and pins nothing, if the buffer holds
+     * no sync frame.
+     * <p>
+     * Only one pin may be held at a time.  Release it with {@link #unpin()}.
+     */
+    public synchronized int pinFirstIndex() {
+        if (mPinnedIndex >= 0) {
+            throw new RuntimeException("buffer already pinned at " + mPinnedIndex);
+        }
+        int index = getFirstIndex();
+        mPinnedIndex = index;
+        return index;
+    }
+
+    /**
+     * Pins the packet at the specified index, so that neither it nor any packet after it
+     * will be evicted.
+     * <p>
+     * Only one pin may be held at a time.  Release it with {@link #unpin()}.
+     */
+    public synchronized void pin(int index) {
+        if (mPinnedIndex >= 0) {
+            throw new RuntimeException("buffer already pinned at " + mPinnedIndex);
+        }
+        mPinnedIndex = index;
+    }
+
+    /**
+     * Returns the index of the oldest packet with a presentation time stamp at or after
+     * ptsUsec, and pins it.  Returns -1, and pins nothing, if there's no such packet.
+     * <p>
+     * Use this for tracks that don't need to start on a sync frame, e.g. audio.
+     */
+    public synchronized int pinFirstIndexAtOrAfter(long ptsUsec) {
+        if (mPinnedIndex >= 0) {
+            throw new RuntimeException("buffer already pinned at " + mPinnedIndex);
+        }
+        int index = getEndIndex(ptsUsec - 1);
+        if (index == mMetaHead) {
+            return -1;
+        }
+        mPinnedIndex = index;
+        return index;
+    }
+
+    /**
+     * Moves the pin forward to the specified index, allowing the packets before it to be
+     * evicted.  Call this as packets are written out, so a long save doesn't hold the
+     * whole buffer.
+     */
+    public synchronized void movePin(int index) {
+        if (mPinnedIndex < 0) {
+            throw new RuntimeException("buffer not pinned");
+        }
+        mPinnedIndex = index;
+    }
+
+    /**
+     * Releases the pin set by {@link #pinFirstIndex()}.
+     */
+    public synchronized void unpin() {
+        mPinnedIndex = -1;
+    }
+
+    /**
+     * Returns the number of packets dropped because the buffer was full and pinned.
+     */
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the number of bytes of the data store currently holding packets.
+     */
+    public synchronized int getBytesInUse() {
+        if (mMetaHead == mMetaTail) {
+            return 0;
+        }
+        final int dataLen = mDataStore.getCapacity();
+        return (getHeadStart() + dataLen - mPacketStart[mMetaTail]) % dataLen;
+    }
+
+    /**
+     * Buffer statistics.  See {@link #getStats(Stats)}.
+     */
+    public static class Stats {
+        /** Packets evicted to make room in the data store. */
+        public int evictedForData;
+        /** Packets evicted to make room in the meta-data arrays. */
+        public int evictedForMeta;
+        /** Packets removed by {@link #removeBefore(long)}. */
+        public int removedBefore;
+        /** Packets dropped because the buffer was full and pinned. */
+        public int dropped;
+        /** Size of the largest packet added, in bytes. */
+        public int maxPacketSize;
+        /** Bytes of the data store holding packets. */
+        public int bytesInUse;
+        /** Size of the data store, in bytes. */
+        public int capacity;
+        /** Time spanned by the buffered packets. */
+        public long spanUsec;
+        /** Bit rate measured from the buffered packets, or zero if the span is empty. */
+        public long measuredBitRate;
+        /** Number of times adaptive sizing replaced the data store. */
+        public int resizeCount;
+
+        @Override
+        public String toString() {
+            return "evicted(data)=" + evictedForData + " evicted(meta)=" + evictedForMeta +
+                    " removedBefore=" + removedBefore + " dropped=" + dropped +
+                    " maxPacket=" + maxPacketSize + " inUse=" + bytesInUse + "/" + capacity +
+                    " span=" + spanUsec / 1000 + "ms bitRate=" + measuredBitRate +
+                    " resizes=" + resizeCount;
+        }
+    }
+
+    /**
+     * Copies the current statistics into "stats".  The caller can reuse a single Stats
+     * object, so polling doesn't allocate.
+     */
+    public synchronized void getStats(Stats stats) {
+        stats.evictedForData = mEvictedForDataCount;
+        stats.evictedForMeta = mEvictedForMetaCount;
+        stats.removedBefore = mRemovedBeforeCount;
+        stats.dropped = mDroppedCount;
+        stats.maxPacketSize = mMaxPacketSize;
+        stats.bytesInUse = getBytesInUse();
+        stats.capacity = mDataStore.getCapacity();
+        stats.spanUsec = computeTimeSpanUsec();
+        stats.measuredBitRate = stats.spanUsec == 0 ? 0 :
+                stats.bytesInUse * 8000000L / stats.spanUsec;
+        stats.resizeCount = mResizeCount;
+    }
+
+    /**
+     * Returns a reference to a ByteBuffer with the data, and fills in the BufferInfo.
      * <p>
      * The caller must not modify the contents of the returned ByteBuffer.  Altering
      * the position and limit is allowed.
      */
-    public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
-        int packetStart = mPacketStart[index];
+    public synchronized ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
         int length = mPacketLength[index];
 
         info.flags = mPacketFlags[index];
-        info.offset = packetStart;
         info.presentationTimeUs = mPacketPtsUsec[index];
         info.size = length;
-
-        if (packetStart + length <= dataLen) {
-            // one chunk; return full buffer to avoid copying data
-            return mDataBufferWrapper;
-        } else {
-            // two chunks
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
-            int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
-            info.offset = 0;
-            return tempBuf;
-        }
+        return mDataStore.get(mPacketStart[index], length, info);
     }
 
     /**
@@ -232,7 +618,7 @@ public class CircularEncoderBuffer {
             return 0;
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataStore.getCapacity();
         final int metaLen = mPacketStart.length;
 
         int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
@@ -245,8 +631,8 @@ public class CircularEncoderBuffer {
      *
      * @return True if there is enough space to add without removing anything.
      */
-    private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
+    private int canAdd(int size) {
+        final int dataLen = mDataStore.getCapacity();
         final int metaLen = mPacketStart.length;
 
         if (size > dataLen) {
@@ -255,7 +641,7 @@ public class CircularEncoderBuffer {
         }
         if (mMetaHead == mMetaTail) {
             // empty list
-            return true;
+            return ADD_OK;
         }
 
         // Make sure we can advance head without stepping on the tail.
@@ -264,7 +650,7 @@ public class CircularEncoderBuffer {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of metadata (head=" + mMetaHead + " tail=" + mMetaTail +")");
             }
-            return false;
+            return ADD_NO_META;
         }
 
         // Need the byte offset of the start of the "tail" packet, and the byte offset where
@@ -272,12 +658,14 @@ public class CircularEncoderBuffer {
         int headStart = getHeadStart();
         int tailStart = mPacketStart[mMetaTail];
         int freeSpace = (tailStart + dataLen - headStart) % dataLen;
-        if (size > freeSpace) {
+        // getHeadStart() leaves a one-byte gap after each packet, so the packet must be
+        // strictly smaller than the free space or the next head would land past the tail.
+        if (size >= freeSpace) {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of data (tailStart=" + tailStart + " headStart=" + headStart +
                     " req=" + size + " free=" + freeSpace + ")");
             }
-            return false;
+            return ADD_NO_DATA;
         }
 
         if (VERBOSE) {
@@ -285,7 +673,76 @@ public class CircularEncoderBuffer {
                     ((mMetaTail + metaLen - mMetaHead) % metaLen - 1));
         }
 
-        return true;
+        return ADD_OK;
+    }
+
+    /**
+     * Compares the data store's size to what the measured bit rate calls for, and resizes
+     * it if they're far apart.  Called when a sync frame is about to be added, with nothing
+     * pinned.
+     */
+    private void checkSize(long ptsUsec) {
+        if (mLastResizePtsUsec >= 0 && ptsUsec - mLastResizePtsUsec < mDesiredSpanUsec) {
+            return;     // give the last resize a chance to settle
+        }
+        long spanUsec = computeTimeSpanUsec();
+        if (spanUsec < MIN_MEASURE_USEC) {
+            return;
+        }
+        boolean evicting = mEvictedForDataCount != mLastCheckEvictedForData;
+        mLastCheckEvictedForData = mEvictedForDataCount;
+
+        int capacity = mDataStore.getCapacity();
+        int bytesInUse = getBytesInUse();
+        long wanted = (long) bytesInUse * mDesiredSpanUsec / spanUsec;
+        wanted += wanted / 4 + mMaxPacketSize;      // headroom for bit rate variation
+
+        boolean grow = evicting && spanUsec < mDesiredSpanUsec - mDesiredSpanUsec / 10 &&
+                wanted > capacity;
+        boolean shrink = spanUsec >= mDesiredSpanUsec && wanted < capacity - capacity / 3;
+        if (!grow && !shrink) {
+            return;
+        }
+        // Must hold what's in the buffer now, plus the packet about to be added.
+        wanted = Math.max(wanted, bytesInUse + mMaxPacketSize + 1L);
+        wanted = Math.min(wanted, Integer.MAX_VALUE);
+        resizeDataStore((int) wanted);
+        mLastResizePtsUsec = ptsUsec;
+    }
+
+    /**
+     * Replaces the data store with a new one of the specified capacity, copying the buffered
+     * packets to the start of it.  The meta-data indices are unchanged.
+     */
+    private void resizeDataStore(int capacity) {
+        CircularDataStore newStore = mDataStore.createResized(capacity);
+        if (newStore == null) {
+            Log.w(TAG, "data store can't be resized, disabling adaptive sizing");
+            mAdaptiveSizing = false;
+            return;
+        }
+        Log.d(TAG, "resizing data store " + mDataStore.getCapacity() + " -> " + capacity +
+                " (span=" + computeTimeSpanUsec() / 1000 + "ms)");
+        newStore.ensureStagingCapacity(mMaxPacketSize);
+
+        final int metaLen = mPacketStart.length;
+        MediaCodec.BufferInfo info = mResizeInfo;
+        int offset = 0;
+        for (int i = mMetaTail; i != mMetaHead; i = (i + 1) % metaLen) {
+            int length = mPacketLength[i];
+            ByteBuffer buf = mDataStore.get(mPacketStart[i], length, info);
+            buf.clear();
+            buf.position(info.offset);
+            buf.limit(info.offset + length);
+            newStore.put(offset, buf, length);
+            mPacketStart[i] = offset;
+            // Keep the one-byte gap getHeadStart() leaves after each packet.
+            offset += length + 1;
+        }
+
+        mDataStore.release();
+        mDataStore = newStore;
+        mResizeCount++;
     }
 
     /**
@@ -296,6 +753,9 @@ public class CircularEncoderBuffer {
             throw new RuntimeException("Can't removeTail() in empty buffer");
         }
         final int metaLen = mPacketStart.length;
+        if (mSyncHead != mSyncTail && mSyncIndices[mSyncTail] == mMetaTail) {
+            mSyncTail = (mSyncTail + 1) % mSyncIndices.length;
+        }
         mMetaTail = (mMetaTail + 1) % metaLen;
     }
 }
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Keeps idle MediaCodec encoders around so recordings don't pay for creating one.
+ * <p>
+ * Creating a codec instance can take hundreds of milliseconds, and devices support only a
+ * handful at once (see CodecOpenActivity).  Instead of creating and releasing a codec for
+ * each recording, callers acquire one here and hand it back with {@link #recycle}, which
+ * stops and resets it and keeps it for the next caller.  Codecs can also be created ahead
+ * of time with {@link #prewarm}.
+ * <p>
+ * Idle codecs are kept by MIME type and resolution class, and we never hold more than the
+ * device says it can have at once.  Resetting a codec requires API 21; on older devices
+ * recycle() just releases it, and the pool only helps with prewarmed codecs.
+ * <p>
+ * A codec that sits idle for IDLE_TIMEOUT_MSEC is released, so we don't hold on to
+ * instances after the last recording is done.  {@link #releaseIdle} releases them all
+ * right away, e.g. when the app is backgrounded.
+ * <p>
+ * Class is thread-safe.
+ */
+public class CodecPool {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    // Idle codecs kept per key.  One is enough to make the next recording start fast.
+    private static final int MAX_IDLE_PER_KEY = 1;
+
+    // Assumed instance limit when the device can't tell us (pre-API 23).
+    private static final int DEFAULT_MAX_INSTANCES = 4;
+
+    // How long an idle codec is kept before we release it.  Long enough to cover
+    // back-to-back recordings, short enough that we don't hold instances for no reason.
+    private static final long IDLE_TIMEOUT_MSEC = 10000;
+
+    // Housekeeping.
+    private static final Object sLock = new Object();
+    private static CodecPool sInstance = null;
+
+    // Idle codecs, by key.
+    private final HashMap<String, ArrayList<MediaCodec>> mIdle =
+            new HashMap<String, ArrayList<MediaCodec>>();
+    // Codecs handed out, and the key each was acquired under.
+    private final HashMap<MediaCodec, String> mInUse = new HashMap<MediaCodec, String>();
+    // When each idle codec was pooled, in elapsedRealtime() msec.
+    private final HashMap<MediaCodec, Long> mIdleSinceMsec = new HashMap<MediaCodec, Long>();
+    // Instance limit, by MIME type.
+    private final HashMap<String, Integer> mMaxInstances = new HashMap<String, Integer>();
+
+    // Statistics.
+    private int mAcquireCount;
+    private int mHitCount;
+    private long mTotalAcquireNsec;
+    private long mMaxAcquireNsec;
+    private int mExpiredCount;
+
+    // Releases codecs that have been idle too long.  Runs on its own thread, created the
+    // first time something is pooled, since MediaCodec.release() can take a while.
+    private Handler mTrimHandler;
+    private boolean mTrimScheduled;
+    private final Runnable mTrimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            trimIdle();
+        }
+    };
+
+    /**
+     * Returns the singleton instance.
+     */
+    public static CodecPool getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new CodecPool();
+            }
+            return sInstance;
+        }
+    }
+
+    private CodecPool() {}
+
+    /**
+     * Returns an encoder for the MIME type, in the Uninitialized state, ready to be
+     * configured for the specified size.  Reuses an idle codec if there is one.
+     * <p>
+     * Hand the codec back with {@link #recycle(MediaCodec)} rather than releasing it.
+     */
+    public MediaCodec acquireEncoder(String mimeType, int width, int height)
+            throws IOException {
+        long startNsec = System.nanoTime();
+        String key = makeKey(mimeType, width, height);
+        MediaCodec codec;
+        boolean hit;
+        synchronized (this) {
+            codec = removeIdle(key);
+            hit = codec != null;
+        }
+        if (codec == null) {
+            codec = MediaCodec.createEncoderByType(mimeType);
+        }
+        long elapsedNsec = System.nanoTime() - startNsec;
+
+        synchronized (this) {
+            mInUse.put(codec, key);
+            mAcquireCount++;
+            if (hit) {
+                mHitCount++;
+            }
+            mTotalAcquireNsec += elapsedNsec;
+            if (elapsedNsec > mMaxAcquireNsec) {
+                mMaxAcquireNsec = elapsedNsec;
+            }
+        }
+        Log.d(TAG, "acquired " + key + " encoder in " + elapsedNsec / 1000 + "us" +
+                (hit ? " (pooled)" : ""));
+        return codec;
+    }
+
+    /**
+     * Takes back a codec from {@link #acquireEncoder}.  The codec is stopped and reset, and
+     * kept for reuse if there's room, or released if not.  Either way, the caller must not
+     * use it again.
+     * <p>
+     * This may be called in any state, e.g. after stop() or after an error.
+     */
+    public void recycle(MediaCodec codec) {
+        String key;
+        synchronized (this) {
+            key = mInUse.remove(codec);
+        }
+        if (key == null) {
+            Log.w(TAG, "recycling codec that didn't come from the pool");
+            codec.release();
+            return;
+        }
+        if (!resetForReuse(codec)) {
+            codec.release();
+            return;
+        }
+        synchronized (this) {
+            if (countIdle(key) < MAX_IDLE_PER_KEY &&
+                    countInstances(mimeTypeOf(key)) < getMaxInstances(codec, mimeTypeOf(key))) {
+                addIdle(key, codec);
+                if (VERBOSE) Log.d(TAG, "pooled " + key + " encoder");
+                return;
+            }
+        }
+        codec.release();
+    }
+
+    /**
+     * Creates encoders ahead of time, so the next acquireEncoder() calls for this MIME type
+     * and size are fast.  Creating codecs is slow, so don't call this on the UI thread.
+     */
+    public void prewarm(String mimeType, int width, int height, int count) {
+        String key = makeKey(mimeType, width, height);
+        for (int i = 0; i < count; i++) {
+            synchronized (this) {
+                if (countIdle(key) >= MAX_IDLE_PER_KEY) {
+                    return;
+                }
+            }
+            MediaCodec codec;
+            try {
+                codec = MediaCodec.createEncoderByType(mimeType);
+            } catch (IOException ioe) {
+                Log.w(TAG, "prewarm of " + key + " failed", ioe);
+                return;
+            }
+            synchronized (this) {
+                if (countIdle(key) < MAX_IDLE_PER_KEY &&
+                        countInstances(mimeType) < getMaxInstances(codec, mimeType)) {
+                    addIdle(key, codec);
+                    codec = null;
+                }
+            }
+            if (codec != null) {
+                codec.release();
+                return;
+            }
+            Log.d(TAG, "prewarmed " + key + " encoder");
+        }
+    }
+
+    /**
+     * Releases all idle codecs.  Call when the app is backgrounded, so we're not holding
+     * codec instances (a limited, shared resource) we aren't using.
+     */
+    public void releaseIdle() {
+        ArrayList<MediaCodec> idle = new ArrayList<MediaCodec>();
+        synchronized (this) {
+            for (ArrayList<MediaCodec> list : mIdle.values()) {
+                idle.addAll(list);
+            }
+            mIdle.clear();
+            mIdleSinceMsec.clear();
+        }
+        for (MediaCodec codec : idle) {
+            codec.release();
+        }
+        if (!idle.isEmpty()) {
+            Log.d(TAG, "released " + idle.size() + " idle codecs");
+        }
+    }
+
+    /**
+     * Releases the codecs that have been idle for IDLE_TIMEOUT_MSEC, and schedules another
+     * pass for when the next one will have been.
+     */
+    private void trimIdle() {
+        ArrayList<MediaCodec> expired = new ArrayList<MediaCodec>();
+        synchronized (this) {
+            mTrimScheduled = false;
+            long nowMsec = SystemClock.elapsedRealtime();
+            long nextDelayMsec = -1;
+            for (ArrayList<MediaCodec> list : mIdle.values()) {
+                Iterator<MediaCodec> iter = list.iterator();
+                while (iter.hasNext()) {
+                    MediaCodec codec = iter.next();
+                    long idleMsec = nowMsec - mIdleSinceMsec.get(codec);
+                    if (idleMsec >= IDLE_TIMEOUT_MSEC) {
+                        iter.remove();
+                        mIdleSinceMsec.remove(codec);
+                        expired.add(codec);
+                    } else if (nextDelayMsec < 0 ||
+                            IDLE_TIMEOUT_MSEC - idleMsec < nextDelayMsec) {
+                        nextDelayMsec = IDLE_TIMEOUT_MSEC - idleMsec;
+                    }
+                }
+            }
+            mExpiredCount += expired.size();
+            if (nextDelayMsec >= 0) {
+                scheduleTrim(nextDelayMsec);
+            }
+        }
+        for (MediaCodec codec : expired) {
+            codec.release();
+        }
+        if (!expired.isEmpty()) {
+            Log.d(TAG, "released " + expired.size() + " expired codecs");
+        }
+    }
+
+    /**
+     * Arranges for trimIdle() to run after the delay, unless it's already scheduled.  Call
+     * with the lock held.
+     */
+    private void scheduleTrim(long delayMsec) {
+        if (mTrimScheduled) {
+            return;
+        }
+        if (mTrimHandler == null) {
+            HandlerThread thread = new HandlerThread("CodecPool");
+            thread.start();
+            mTrimHandler = new Handler(thread.getLooper());
+        }
+        mTrimHandler.postDelayed(mTrimRunnable, delayMsec);
+        mTrimScheduled = true;
+    }
+
+    /**
+     * Returns the number of additional encoders for the MIME type that we expect the device
+     * can create right now: its instance limit, less the ones we've handed out.  Idle codecs
+     * count as available, since acquireEncoder() can reuse them.
+     * <p>
+     * Other apps may be using codecs too, so this is an upper bound.
+     */
+    public int getAvailableInstances(String mimeType) {
+        synchronized (this) {
+            Integer max = mMaxInstances.get(mimeType);
+            if (max != null) {
+                return Math.max(max - countInUse(mimeType), 0);
+            }
+        }
+        // Not cached yet.  Scanning the codec list can be slow, so do it without the lock.
+        int max = DEFAULT_MAX_INSTANCES;
+        for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (info.isEncoder() && supportsType(info, mimeType)) {
+                max = queryMaxInstances(info, mimeType);
+                break;
+            }
+        }
+        synchronized (this) {
+            mMaxInstances.put(mimeType, max);
+            return Math.max(max - countInUse(mimeType), 0);
+        }
+    }
+
+    /**
+     * Returns the average time acquireEncoder() took, in microseconds.
+     */
+    public synchronized long getAverageAcquireUsec() {
+        return mAcquireCount == 0 ? 0 : mTotalAcquireNsec / mAcquireCount / 1000;
+    }
+
+    /**
+     * Returns the longest time acquireEncoder() took, in microseconds.
+     */
+    public synchronized long getMaxAcquireUsec() {
+        return mMaxAcquireNsec / 1000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "acquired=" + mAcquireCount + " pooled=" + mHitCount + " avgAcquire=" +
+                getAverageAcquireUsec() + "us maxAcquire=" + getMaxAcquireUsec() +
+                "us inUse=" + mInUse.size() + " idle=" + countIdle(null) +
+                " expired=" + mExpiredCount;
+    }
+
+    /**
+     * Returns the pool key: the MIME type plus a coarse resolution class, so a codec that
+     * was set up for 4K isn't handed out for a thumbnail, and vice versa.
+     */
+    private static String makeKey(String mimeType, int width, int height) {
+        int pixels = width * height;
+        String sizeClass;
+        if (pixels <= 640 * 480) {
+            sizeClass = "sd";
+        } else if (pixels <= 1280 * 720) {
+            sizeClass = "hd";
+        } else if (pixels <= 1920 * 1088) {
+            sizeClass = "fhd";
+        } else {
+            sizeClass = "uhd";
+        }
+        return mimeType + "/" + sizeClass;
+    }
+
+    private static String mimeTypeOf(String key) {
+        return key.substring(0, key.lastIndexOf('/'));
+    }
+
+    /**
+     * Stops and resets the codec, returning it to the Uninitialized state.  Returns false
+     * if it can't be reused.
+     */
+    private static boolean resetForReuse(MediaCodec codec) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            codec.stop();
+        } catch (IllegalStateException ise) {
+            // Not started, or already stopped.  reset() will sort it out.
+        }
+        try {
+            codec.reset();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                // Back to synchronous mode, in case the last user set a callback.
+                codec.setCallback(null);
+            }
+        } catch (IllegalStateException ise) {
+            Log.w(TAG, "codec reset failed", ise);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the device's limit on concurrent instances of the codec.  Call with the
+     * lock held.
+     */
+    private int getMaxInstances(MediaCodec codec, String mimeType) {
+        Integer max = mMaxInstances.get(mimeType);
+        if (max == null) {
+            max = queryMaxInstances(codec.getCodecInfo(), mimeType);
+            mMaxInstances.put(mimeType, max);
+        }
+        return max;
+    }
+
+    /**
+     * Asks the codec for its instance limit.  Requires API 23; earlier devices get
+     * DEFAULT_MAX_INSTANCES.
+     */
+    private static int queryMaxInstances(MediaCodecInfo info, String mimeType) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            try {
+                return info.getCapabilitiesForType(mimeType).getMaxSupportedInstances();
+            } catch (IllegalArgumentException iae) {
+                Log.w(TAG, "can't get capabilities for " + mimeType);
+            }
+        }
+        return DEFAULT_MAX_INSTANCES;
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mimeType) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of codecs for the MIME type that we've handed out.  Call with the
+     * lock held.
+     */
+    private int countInUse(String mimeType) {
+        int count = 0;
+        for (String key : mInUse.values()) {
+            if (mimeTypeOf(key).equals(mimeType)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of codecs for the MIME type that we know about, in use or idle.
+     * Call with the lock held.
+     */
+    private int countInstances(String mimeType) {
+        int count = countInUse(mimeType);
+        for (String key : mIdle.keySet()) {
+            if (mimeTypeOf(key).equals(mimeType)) {
+                count += mIdle.get(key).size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of idle codecs for the key, or for all keys if it's null.  Call
+     * with the lock held.
+     */
+    private int countIdle(String key) {
+        if (key != null) {
+            ArrayList<MediaCodec> list = mIdle.get(key);
+            return list == null ? 0 : list.size();
+        }
+        int count = 0;
+        for (ArrayList<MediaCodec> list : mIdle.values()) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    private MediaCodec removeIdle(String key) {
+        ArrayList<MediaCodec> list = mIdle.get(key);
+        if (list == null || list.isEmpty()) {
+            return null;
+        }
+        MediaCodec codec = list.remove(list.size() - 1);
+        mIdleSinceMsec.remove(codec);
+        return codec;
+    }
+
+    private void addIdle(String key, MediaCodec codec) {
+        ArrayList<MediaCodec> list = mIdle.get(key);
+        if (list == null) {
+            list = new ArrayList<MediaCodec>();
+            mIdle.put(key, list);
+        }
+        list.add(codec);
+        mIdleSinceMsec.put(codec, SystemClock.elapsedRealtime());
+        scheduleTrim(IDLE_TIMEOUT_MSEC);
+    }
+}
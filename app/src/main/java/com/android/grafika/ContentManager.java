@@ -26,7 +26,12 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Manages content generated by the app.
@@ -34,15 +39,18 @@ import java.util.ArrayList;
  * [ Originally this was going to prepare stuff on demand, but it's easier to just
  * create it all up front on first launch. ]
  * <p>
+ * A manifest (see ContentManifest) records the parameters and a hash of each generated
+ * file.  Items whose generator settings changed, or whose file doesn't match, are rebuilt;
+ * the rest are left alone.
+ * <p>
  * Class is thread-safe.
  */
 public class ContentManager {
     private static final String TAG = MainActivity.TAG;
 
-    // Enumerated content tags.  These are used as indices into the mContent ArrayList,
-    // so don't make them sparse.
-    // TODO: consider using String tags and a HashMap?  prepare() is currently fragile,
-    //       depending on the movies being added in tag-order.  Could also just use a plain array.
+    // Enumerated content tags.  These are used as indices into the mContent array, so
+    // don't make them sparse.
+    // TODO: consider using String tags and a HashMap?
     public static final int MOVIE_EIGHT_RECTS = 0;
     public static final int MOVIE_SLIDERS = 1;
 
@@ -51,13 +59,19 @@ public class ContentManager {
             MOVIE_SLIDERS
     };
 
+    // Encoder used by the GeneratedMovie subclasses.  Each running generator holds one.
+    private static final String GENERATOR_MIME_TYPE = "video/avc";
+
+    private static final String MANIFEST_FILE_NAME = "content-manifest.properties";
+
     // Housekeeping.
     private static final Object sLock = new Object();
     private static ContentManager sInstance = null;
 
     private boolean mInitialized = false;
     private File mFilesDir;
-    private ArrayList<Content> mContent;
+    private Content[] mContent;
+    private ContentManifest mManifest;
 
     /**
      * Returns the singleton instance.
@@ -78,31 +92,55 @@ public class ContentManager {
         synchronized (sLock) {
             if (!mgr.mInitialized) {
                 mgr.mFilesDir = context.getFilesDir();
-                mgr.mContent = new ArrayList<Content>();
+                mgr.mContent = new Content[ALL_TAGS.length];
+                mgr.mManifest = new ContentManifest(new File(mgr.mFilesDir,
+                        MANIFEST_FILE_NAME));
                 mgr.mInitialized = true;
             }
         }
     }
 
     /**
-     * Returns true if all of the content has been created.
+     * Returns true if all of the content has been created, with the current generator
+     * parameters, and the files are intact.
      * <p>
-     * If this returns false, call createAll.
+     * If this returns false, call createStale or createAll.
      */
     public boolean isContentCreated(@SuppressWarnings("unused") Context unused) {
-        // Ideally this would probe each individual item to see if anything needs to be done,
-        // and a subsequent "prepare" call would generate only the necessary items.  This
-        // takes a much simpler approach and just checks to see if the files exist.  If the
-        // content changes the user will need to force a regen (via a menu option) or wipe data.
-
-        for (int i = 0; i < ALL_TAGS.length; i++) {
-            File file = getPath(i);
-            if (!file.canRead()) {
-                Log.d(TAG, "Can't find readable " + file);
-                return false;
+        return getStaleTags().length == 0;
+    }
+
+    /**
+     * Returns the tags of the items that need to be generated: those that have never been
+     * generated, were generated with different parameters, or whose files don't match the
+     * manifest.
+     * <p>
+     * This reads each file to check its hash, so it may take a moment.
+     */
+    public int[] getStaleTags() {
+        int[] stale = new int[ALL_TAGS.length];
+        int count = 0;
+        for (int tag : ALL_TAGS) {
+            String params = newGenerator(tag).getParameters();
+            if (!mManifest.isValid(getPath(tag), params)) {
+                stale[count++] = tag;
             }
         }
-        return true;
+        return Arrays.copyOf(stale, count);
+    }
+
+    /**
+     * Creates the content that's missing or out of date, if any.
+     * <p>
+     * Call from main UI thread.
+     */
+    public void createStale(Activity caller) {
+        int[] tags = getStaleTags();
+        if (tags.length == 0) {
+            Log.d(TAG, "content is up to date");
+            return;
+        }
+        prepareContent(caller, tags);
     }
 
     /**
@@ -119,7 +157,9 @@ public class ContentManager {
      * exist, this will post a progress dialog and generate the movie.
      * <p>
      * Call from main UI thread.  This returns immediately.  Content generation continues
-     * on a background thread.
+     * on background threads.  Items are generated concurrently, as many at a time as the
+     * device has encoder instances to spare, so the whole set takes about as long as the
+     * slowest item.
      */
     public void prepareContent(Activity caller, int[] tags) {
         // Put up the progress dialog.
@@ -137,32 +177,50 @@ public class ContentManager {
      */
     public Content getContent(int tag) {
         synchronized (mContent) {
-            return mContent.get(tag);
+            return mContent[tag];
         }
     }
 
     /**
      * Prepares the specified item.
      * <p>
-     * This may be called from the async task thread.
+     * This may be called from any thread, and from several threads at once for different
+     * tags.
      */
     private void prepare(ProgressUpdater prog, int tag) {
-        GeneratedMovie movie;
+        File file = getPath(tag);
+        GeneratedMovie movie = newGenerator(tag);
+
+        // Drop the old entry first, so if we fail partway the file won't look valid.
+        try {
+            mManifest.remove(file);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to update content manifest", ioe);
+        }
+
+        movie.create(file, prog);
+        synchronized (mContent) {
+            mContent[tag] = movie;
+        }
+
+        try {
+            mManifest.record(file, movie.getParameters());
+        } catch (IOException ioe) {
+            // The movie is fine; it'll just be regenerated next time.
+            Log.w(TAG, "Unable to record " + file + " in content manifest", ioe);
+        }
+    }
+
+    /**
+     * Returns a new generator for the tag.  Generators are cheap to create; the work
+     * happens in create().
+     */
+    private static GeneratedMovie newGenerator(int tag) {
         switch (tag) {
             case MOVIE_EIGHT_RECTS:
-                movie = new MovieEightRects();
-                movie.create(getPath(tag), prog);
-                synchronized (mContent) {
-                    mContent.add(tag, movie);
-                }
-                break;
+                return new MovieEightRects();
             case MOVIE_SLIDERS:
-                movie = new MovieSliders();
-                movie.create(getPath(tag), prog);
-                synchronized (mContent) {
-                    mContent.add(tag, movie);
-                }
-                break;
+                return new MovieSliders();
             default:
                 throw new RuntimeException("Unknown tag " + tag);
         }
@@ -198,20 +256,18 @@ public class ContentManager {
     }
 
     /**
-     * Performs generation of content on an async task thread.
+     * Performs generation of content.  The async task thread hands the items to a pool of
+     * generator threads, and waits for them to finish.
      */
-    private static class GenerateTask extends AsyncTask<Void, Integer, Integer>
-            implements ProgressUpdater {
+    private static class GenerateTask extends AsyncTask<Void, Integer, Integer> {
         // ----- accessed from UI thread -----
         private final Context mContext;
         private final AlertDialog mPrepDialog;
         private final ProgressBar mProgressBar;
 
-        // ----- accessed from async thread -----
-        private int mCurrentIndex;
-
         // ----- accessed from both -----
         private final int[] mTags;
+        private final int[] mPercent;       // progress of each item; guarded by itself
         private volatile RuntimeException mFailure;
 
 
@@ -219,50 +275,101 @@ public class ContentManager {
             mContext = context;
             mPrepDialog = dialog;
             mTags = tags;
+            mPercent = new int[tags.length];
             mProgressBar = (ProgressBar) mPrepDialog.findViewById(R.id.work_progress);
             mProgressBar.setMax(tags.length * 100);
         }
 
         @Override // async task thread
         protected Integer doInBackground(Void... params) {
-            ContentManager contentManager = ContentManager.getInstance();
-
-            Log.d(TAG, "doInBackground...");
+            final ContentManager contentManager = ContentManager.getInstance();
+
+            // Each generator holds an encoder until it's done, so don't run more of them at
+            // once than the device can support.
+            int numThreads = Math.min(mTags.length,
+                    CodecPool.getInstance().getAvailableInstances(GENERATOR_MIME_TYPE));
+            numThreads = Math.max(numThreads, 1);
+            Log.d(TAG, "doInBackground: " + mTags.length + " items, " + numThreads +
+                    " threads");
+            long startNsec = System.nanoTime();
+
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            ArrayList<Future<?>> futures = new ArrayList<Future<?>>(mTags.length);
             for (int i = 0; i < mTags.length; i++) {
-                mCurrentIndex = i;
-                updateProgress(0);
+                final int index = i;
+                futures.add(executor.submit(new Runnable() {
+                    @Override // generator thread
+                    public void run() {
+                        if (mFailure != null) {
+                            return;     // something else failed; don't bother
+                        }
+                        ProgressUpdater prog = new ProgressUpdater() {
+                            @Override
+                            public void updateProgress(int percent) {
+                                GenerateTask.this.updateProgress(index, percent);
+                            }
+                        };
+                        prog.updateProgress(0);
+                        try {
+                            contentManager.prepare(prog, mTags[index]);
+                        } catch (RuntimeException re) {
+                            mFailure = re;
+                            return;
+                        }
+                        prog.updateProgress(100);
+                    }
+                }));
+            }
+            executor.shutdown();
+
+            for (Future<?> future : futures) {
                 try {
-                    contentManager.prepare(this, mTags[i]);
-                } catch (RuntimeException re) {
-                    mFailure = re;
-                    break;
+                    future.get();
+                } catch (Exception ex) {
+                    // prepare() failures are caught in run(), so this is unexpected
+                    if (mFailure == null) {
+                        mFailure = new RuntimeException(ex);
+                    }
                 }
-                updateProgress(100);
             }
 
             if (mFailure != null) {
                 Log.w(TAG, "Failed while generating content", mFailure);
             } else {
-                Log.d(TAG, "generation complete");
+                Log.d(TAG, "generation complete in " +
+                        (System.nanoTime() - startNsec) / 1000000 + "ms");
             }
             return 0;
         }
 
-        @Override // async task thread
-        public void updateProgress(int percent) {
-            publishProgress(mCurrentIndex, percent);
+        /**
+         * Records progress for one item, and publishes the progress of the whole set.
+         * <p>
+         * Called from the generator threads.
+         */
+        private void updateProgress(int index, int percent) {
+            int total = 0;
+            synchronized (mPercent) {
+                mPercent[index] = percent;
+                for (int itemPercent : mPercent) {
+                    total += itemPercent;
+                }
+            }
+            publishProgress(index, percent, total);
         }
 
         @Override // UI thread
         protected void onProgressUpdate(Integer... progressArray) {
             int index = progressArray[0];
             int percent = progressArray[1];
+            int total = progressArray[2];
             //Log.d(TAG, "progress " + index + "/" + percent + " of " + mTags.length * 100);
             if (percent == 0) {
+                // Show whichever item started most recently.
                 TextView name = (TextView) mPrepDialog.findViewById(R.id.workJobName_text);
                 name.setText(ContentManager.getInstance().getFileName(mTags[index]));
             }
-            mProgressBar.setProgress(index * 100 + percent);
+            mProgressBar.setProgress(total);
         }
 
         @Override // UI thread
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Records how each generated file was made, so we can tell whether it's still good.
+ * <p>
+ * For each file we keep the generator's parameter string (see
+ * {@link GeneratedMovie#getParameters()}), the file size, and a SHA-1 hash of the contents.
+ * A file is valid only if all three still match.  A generator with different settings, or
+ * a file that's missing, truncated, or was overwritten, needs to be rebuilt.
+ * <p>
+ * Hashing a movie takes a while, and validation runs during activity startup, so we also
+ * keep the modification time.  If the size and modification time both match, the file is
+ * taken to be unchanged and isn't hashed.
+ * <p>
+ * The manifest is a properties file.  It's rewritten, via a temporary file and a rename,
+ * whenever an entry changes.
+ * <p>
+ * Class is thread-safe.
+ */
+public class ContentManifest {
+    private static final String TAG = MainActivity.TAG;
+
+    private static final String PARAMS_SUFFIX = ".params";
+    private static final String SIZE_SUFFIX = ".size";
+    private static final String HASH_SUFFIX = ".sha1";
+    private static final String MTIME_SUFFIX = ".mtime";
+
+    private final File mManifestFile;
+    private final Properties mEntries = new Properties();
+
+    /**
+     * Loads the manifest, if it exists.  A manifest that can't be read is treated as empty,
+     * which means everything will be regenerated.
+     */
+    public ContentManifest(File manifestFile) {
+        mManifestFile = manifestFile;
+        if (!manifestFile.exists()) {
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(manifestFile);
+            mEntries.load(in);
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to read " + manifestFile, ioe);
+            mEntries.clear();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Returns true if the file was recorded with these parameters, and its size and contents
+     * haven't changed since.
+     */
+    public boolean isValid(File file, String params) {
+        String name = file.getName();
+        String recordedParams, recordedSize, recordedHash, recordedMtime;
+        synchronized (mEntries) {
+            recordedParams = mEntries.getProperty(name + PARAMS_SUFFIX);
+            recordedSize = mEntries.getProperty(name + SIZE_SUFFIX);
+            recordedHash = mEntries.getProperty(name + HASH_SUFFIX);
+            recordedMtime = mEntries.getProperty(name + MTIME_SUFFIX);
+        }
+        if (recordedParams == null || recordedSize == null || recordedHash == null) {
+            Log.d(TAG, name + ": not in manifest");
+            return false;
+        }
+        if (!recordedParams.equals(params)) {
+            Log.d(TAG, name + ": parameters changed (was '" + recordedParams + "', now '" +
+                    params + "')");
+            return false;
+        }
+        // Check the size first.  It's cheap, and catches missing or truncated files.
+        if (!file.canRead() || !recordedSize.equals(Long.toString(file.length()))) {
+            Log.d(TAG, name + ": missing or wrong size");
+            return false;
+        }
+        String mtime = Long.toString(file.lastModified());
+        if (mtime.equals(recordedMtime)) {
+            // Not touched since we recorded it; skip the hash.
+            return true;
+        }
+        String hash;
+        try {
+            hash = computeHash(file);
+        } catch (IOException ioe) {
+            Log.w(TAG, name + ": unable to hash", ioe);
+            return false;
+        }
+        if (!recordedHash.equals(hash)) {
+            Log.d(TAG, name + ": contents changed");
+            return false;
+        }
+
+        // Touched but unchanged (or recorded before we kept times).  Note the new time, so
+        // we don't have to hash it again.
+        synchronized (mEntries) {
+            mEntries.setProperty(name + MTIME_SUFFIX, mtime);
+            try {
+                save();
+            } catch (IOException ioe) {
+                Log.w(TAG, "unable to update manifest", ioe);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records a newly-generated file, and saves the manifest.
+     */
+    public void record(File file, String params) throws IOException {
+        String name = file.getName();
+        String hash = computeHash(file);
+        synchronized (mEntries) {
+            mEntries.setProperty(name + PARAMS_SUFFIX, params);
+            mEntries.setProperty(name + SIZE_SUFFIX, Long.toString(file.length()));
+            mEntries.setProperty(name + HASH_SUFFIX, hash);
+            mEntries.setProperty(name + MTIME_SUFFIX, Long.toString(file.lastModified()));
+            save();
+        }
+    }
+
+    /**
+     * Forgets a file, and saves the manifest.  Call before regenerating it, so an
+     * interrupted generation doesn't leave a valid-looking entry behind.
+     */
+    public void remove(File file) throws IOException {
+        String name = file.getName();
+        synchronized (mEntries) {
+            if (mEntries.remove(name + PARAMS_SUFFIX) == null) {
+                return;
+            }
+            mEntries.remove(name + SIZE_SUFFIX);
+            mEntries.remove(name + HASH_SUFFIX);
+            mEntries.remove(name + MTIME_SUFFIX);
+            save();
+        }
+    }
+
+    /**
+     * Writes the entries out.  Call with the mEntries lock held.
+     */
+    private void save() throws IOException {
+        File tmpFile = new File(mManifestFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmpFile);
+        try {
+            mEntries.store(out, "generated content");
+        } finally {
+            closeQuietly(out);
+        }
+        if (!tmpFile.renameTo(mManifestFile)) {
+            throw new IOException("unable to rename " + tmpFile + " to " + mManifestFile);
+        }
+    }
+
+    /**
+     * Returns the SHA-1 hash of the file's contents, as a hex string.
+     */
+    private static String computeHash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);   // every Android device has SHA-1
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[65536];
+            int count;
+            while ((count = in.read(buf)) > 0) {
+                digest.update(buf, 0, count);
+            }
+        } finally {
+            closeQuietly(in);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "close failed", ioe);
+            }
+        }
+    }
+}
@@ -77,8 +77,10 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
 
     private File mOutputFile;
     private CircularEncoder mCircEncoder;
+    private Thread mPrewarmThread;
     private WindowSurface mEncoderSurface;
     private boolean mFileSaveInProgress;
+    private boolean mAudioPermissionRequested;
 
     private MainHandler mHandler;
     private float mSecondsOfVideo;
@@ -101,7 +103,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
             mWeakActivity = new WeakReference<ContinuousCaptureActivity>(activity);
         }
 
-        // CircularEncoder.Callback, called on encoder thread
+        // CircularEncoder.Callback, called on encoder or writer thread
         @Override
         public void fileSaveComplete(int status) {
             sendMessage(obtainMessage(MSG_FILE_SAVE_COMPLETE, status, 0, null));
@@ -185,7 +187,16 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         if (!PermissionHelper.hasCameraPermission(this)) {
             PermissionHelper.requestCameraPermission(this, false);
         } else  {
+            if (!mAudioPermissionRequested && !PermissionHelper.hasRecordAudioPermission(this)) {
+                // Audio is optional.  Ask once; if refused, we just record video.
+                mAudioPermissionRequested = true;
+                PermissionHelper.requestRecordAudioPermission(this);
+            }
             if (mCamera == null) {
+                // Create the video encoder while the camera is opening, so it's ready by the
+                // time the surface is.
+                prewarmEncoder();
+
                 // Ideally, the frames from the camera are at the same resolution as the input to
                 // the video encoder so we don't have to scale.
                 openCamera(VIDEO_WIDTH, VIDEO_HEIGHT, DESIRED_PREVIEW_FPS);
@@ -196,6 +207,20 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         }
     }
 
+    /**
+     * Creates a video encoder in the codec pool, on a background thread.
+     */
+    private void prewarmEncoder() {
+        mPrewarmThread = new Thread("prewarm") {
+            @Override
+            public void run() {
+                CodecPool.getInstance().prewarm(CircularEncoder.MIME_TYPE, VIDEO_WIDTH,
+                        VIDEO_HEIGHT, 1);
+            }
+        };
+        mPrewarmThread.start();
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
@@ -206,6 +231,19 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
             mCircEncoder.shutdown();
             mCircEncoder = null;
         }
+        // Don't sit on codec instances while we're in the background.  If the prewarm
+        // is still running, wait for it, or it'll put a codec back in the pool after we've
+        // emptied it.
+        if (mPrewarmThread != null) {
+            try {
+                mPrewarmThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "prewarm join() was interrupted", ie);
+            }
+            mPrewarmThread = null;
+        }
+        Log.d(TAG, "codec pool: " + CodecPool.getInstance());
+        CodecPool.getInstance().releaseIdle();
         if (mCameraTexture != null) {
             mCameraTexture.release();
             mCameraTexture = null;
@@ -336,7 +374,8 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         tv.setText(str);
 
 
-        mCircEncoder.saveVideo(mOutputFile);
+        // The save runs on its own thread, so we keep feeding frames to the encoder.
+        mCircEncoder.saveVideoConcurrent(mOutputFile);
     }
 
     /**
@@ -411,7 +450,8 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         //       (can we guarantee that camera preview size is compatible with AVC video encoder?)
         try {
             mCircEncoder = new CircularEncoder(VIDEO_WIDTH, VIDEO_HEIGHT, 6000000,
-                    mCameraPreviewThousandFps / 1000, 7, mHandler);
+                    mCameraPreviewThousandFps / 1000, 7, null,
+                    PermissionHelper.hasRecordAudioPermission(this), mHandler);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -445,7 +485,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
                     "Camera permission is needed to run this application", Toast.LENGTH_LONG).show();
             PermissionHelper.launchPermissionSettings(this);
             finish();
-        } else {
+        } else if (mCamera == null) {
             openCamera(VIDEO_WIDTH, VIDEO_HEIGHT, DESIRED_PREVIEW_FPS);
         }
     }
@@ -482,16 +522,15 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         drawExtra(mFrameNum, viewWidth, viewHeight);
         mDisplaySurface.swapBuffers();
 
-        // Send it to the video encoder.
-        if (!mFileSaveInProgress) {
-            mEncoderSurface.makeCurrent();
-            GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
-            mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
-            drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
-            mCircEncoder.frameAvailableSoon();
-            mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
-            mEncoderSurface.swapBuffers();
-        }
+        // Send it to the video encoder.  Saves are done concurrently, so this continues
+        // while a file save is in progress.
+        mEncoderSurface.makeCurrent();
+        GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
+        mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
+        drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
+        mCircEncoder.frameAvailableSoon();
+        mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
+        mEncoderSurface.swapBuffers();
 
         mFrameNum++;
     }
@@ -231,6 +231,8 @@ public class DoubleDecodeActivity extends Activity {
             try {
                 mMoviePlayer = new MoviePlayer(mFile, mSurface, mCallback);
                 mMoviePlayer.setLoopMode(true);
+                // Two players at once; let codec events drive them rather than polling.
+                mMoviePlayer.setAsyncMode(true);
                 mMoviePlayer.play();
             } catch (IOException ioe) {
                 Log.e(TAG, "movie playback failed", ioe);
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The output side of a video encoder, as seen by {@link EncoderPipeline}.
+ * <p>
+ * The methods behave like the MediaCodec methods of the same name.  Use
+ * {@link EncoderPipeline#wrap(MediaCodec)} to get one for a real encoder.
+ */
+public interface EncoderCodec {
+    /**
+     * Returns the index of an output buffer, or one of the MediaCodec.INFO_* values.
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    /**
+     * Returns the data for an output buffer index returned by dequeueOutputBuffer().
+     */
+    ByteBuffer getOutputBuffer(int index);
+
+    /**
+     * Returns the current output format.
+     */
+    MediaFormat getOutputFormat();
+
+    /**
+     * Hands an output buffer back to the codec.
+     */
+    void releaseOutputBuffer(int index);
+
+    /**
+     * Tells the codec there won't be any more input.
+     */
+    void signalEndOfInputStream();
+}
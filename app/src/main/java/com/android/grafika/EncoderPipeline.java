@@ -0,0 +1,435 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Moves output from a video encoder to a {@link Sink}.
+ * <p>
+ * This is the one place that deals with the encoder's output quirks.  The output format is
+ * handed to the sink once, before the first packet.  If packets show up before the encoder
+ * reports its format, we build one from the SPS/PPS in the codec config buffer instead.
+ * Codec config buffers are parsed but not passed on, since the muxer gets the same data
+ * from the format.  Every packet goes through an {@link AvcNalParser}, and the sink gets
+ * the packet's CONTAINS_* bits along with the data.
+ * <p>
+ * Output can be pulled with drain(), or pushed from a MediaCodec.Callback through
+ * handleOutputFormat() and handleOutputBuffer().
+ * <p>
+ * The pipeline also counts packets and bytes, and times how long the sink holds each
+ * buffer.  The sink's time is the time the codec can't reuse that buffer.
+ * <p>
+ * Not thread-safe.  Use it from the thread that handles encoder output, and read the
+ * statistics when that thread is idle.
+ */
+public class EncoderPipeline {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** Default dequeueOutputBuffer() timeout for drain(). */
+    public static final long DEFAULT_TIMEOUT_USEC = 10000;
+
+    /**
+     * Receives the encoder's output.
+     */
+    public interface Sink {
+        /**
+         * Called once, before the first packet, with the format to give the muxer.
+         */
+        void onOutputFormat(MediaFormat format);
+
+        /**
+         * Called for each encoded packet.  The buffer's position and limit bracket the data.
+         * The buffer goes back to the codec when this returns.
+         *
+         * @param contents The packet's AvcNalParser CONTAINS_* bits.
+         */
+        void onPacket(ByteBuffer buf, MediaCodec.BufferInfo info, int contents);
+    }
+
+    private final EncoderCodec mCodec;
+    private final Sink mSink;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final AvcNalParser mNalParser = new AvcNalParser();
+    private final int mWidth;
+    private final int mHeight;
+    private long mTimeoutUsec = DEFAULT_TIMEOUT_USEC;
+    private boolean mFormatSent;
+
+    // Statistics.
+    private long mDrainCount;
+    private long mPacketCount;
+    private long mByteCount;
+    private long mTotalSinkNsec;
+    private long mMaxSinkNsec;
+    private long mFirstPacketNsec;
+    private long mLastPacketNsec;
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param width Video width, used if we have to build the output format ourselves.
+     * @param height Video height, likewise.
+     */
+    public EncoderPipeline(EncoderCodec codec, Sink sink, int width, int height) {
+        mCodec = codec;
+        mSink = sink;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Wraps a MediaCodec encoder.
+     */
+    public static EncoderCodec wrap(MediaCodec codec) {
+        return new MediaCodecWrapper(codec);
+    }
+
+    /**
+     * Sets the dequeueOutputBuffer() timeout used by drain().  Use zero to return as soon as
+     * the encoder has no output.
+     */
+    public void setDequeueTimeoutUsec(long timeoutUsec) {
+        mTimeoutUsec = timeoutUsec;
+    }
+
+    /**
+     * Returns the parser that sees all of the encoder's output.  It holds the SPS/PPS and
+     * per-frame bitstream statistics.
+     */
+    public AvcNalParser getNalParser() {
+        return mNalParser;
+    }
+
+    /**
+     * Returns true once the sink has been given the output format.
+     */
+    public boolean isFormatSent() {
+        return mFormatSent;
+    }
+
+    /**
+     * Extracts all pending data from the encoder and forwards it to the sink.
+     * <p>
+     * If endOfStream is not set, this returns when there is no more data to drain.  If it
+     * is set, we send EOS to the encoder, and then iterate until we see EOS on the output.
+     * Calling this with endOfStream set should be done once, right before stopping the sink.
+     *
+     * @return True if the end of the stream was reached.
+     */
+    public boolean drain(boolean endOfStream) {
+        if (VERBOSE) Log.d(TAG, "drain(" + endOfStream + ")");
+
+        if (endOfStream) {
+            if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+            mCodec.signalEndOfInputStream();
+        }
+
+        mDrainCount++;
+        while (true) {
+            int encoderStatus = mCodec.dequeueOutputBuffer(mBufferInfo, mTimeoutUsec);
+            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                // no output available yet
+                if (!endOfStream) {
+                    return false;
+                } else {
+                    if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
+                }
+            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                // not expected for an encoder; the codec wrapper refreshes its buffers
+            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                handleOutputFormat(mCodec.getOutputFormat());
+            } else if (encoderStatus < 0) {
+                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
+                        encoderStatus);
+                // let's ignore it
+            } else if (handleOutputBuffer(encoderStatus, mBufferInfo)) {
+                if (!endOfStream) {
+                    Log.w(TAG, "reached end of stream unexpectedly");
+                } else {
+                    if (VERBOSE) Log.d(TAG, "end of stream reached");
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Passes the encoder's output format to the sink.  Call from
+     * MediaCodec.Callback#onOutputFormatChanged().
+     */
+    public void handleOutputFormat(MediaFormat format) {
+        // should happen before receiving buffers, and should only happen once
+        if (mFormatSent) {
+            throw new RuntimeException("format changed after output started");
+        }
+        Log.d(TAG, "encoder output format changed: " + format);
+        mFormatSent = true;
+        mSink.onOutputFormat(format);
+    }
+
+    /**
+     * Passes an output buffer to the sink and releases it.  Call from
+     * MediaCodec.Callback#onOutputBufferAvailable().
+     *
+     * @return True if this was the end of the stream.
+     */
+    public boolean handleOutputBuffer(int index, MediaCodec.BufferInfo info) {
+        ByteBuffer encodedData = mCodec.getOutputBuffer(index);
+        if (encodedData == null) {
+            throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+        }
+        long startNsec = System.nanoTime();
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data is normally pulled out and fed to the muxer when
+            // we get the INFO_OUTPUT_FORMAT_CHANGED status.  We cache the SPS/PPS
+            // anyway, in case frames show up first.
+            mNalParser.parse(encodedData, info.offset, info.size);
+            if (VERBOSE) Log.d(TAG, "cached BUFFER_FLAG_CODEC_CONFIG");
+            info.size = 0;
+        }
+
+        if (info.size != 0) {
+            int contents = mNalParser.parse(encodedData, info.offset, info.size);
+            if (!mFormatSent) {
+                if (!mNalParser.hasParameterSets()) {
+                    throw new RuntimeException("output arrived before format");
+                }
+                Log.d(TAG, "building output format from cached SPS/PPS");
+                handleOutputFormat(MiscUtils.createAvcFormat(mWidth, mHeight,
+                        mNalParser.getSps(), mNalParser.getPps()));
+            }
+
+            // adjust the ByteBuffer values to match BufferInfo (not needed?)
+            encodedData.position(info.offset);
+            encodedData.limit(info.offset + info.size);
+
+            mSink.onPacket(encodedData, info, contents);
+            if (VERBOSE) {
+                Log.d(TAG, "sent " + info.size + " bytes to sink, ts=" +
+                        info.presentationTimeUs);
+            }
+            mPacketCount++;
+            mByteCount += info.size;
+        }
+
+        mCodec.releaseOutputBuffer(index);
+
+        long endNsec = System.nanoTime();
+        long sinkNsec = endNsec - startNsec;
+        mTotalSinkNsec += sinkNsec;
+        if (sinkNsec > mMaxSinkNsec) {
+            mMaxSinkNsec = sinkNsec;
+        }
+        if (mFirstPacketNsec == 0) {
+            mFirstPacketNsec = startNsec;
+        }
+        mLastPacketNsec = endNsec;
+
+        return (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    /**
+     * Returns the number of packets passed to the sink.
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * Returns the number of bytes passed to the sink.
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * Returns the average time from getting an output buffer to releasing it, in
+     * microseconds.
+     */
+    public long getAverageSinkUsec() {
+        return mPacketCount == 0 ? 0 : mTotalSinkNsec / mPacketCount / 1000;
+    }
+
+    /**
+     * Returns the longest time from getting an output buffer to releasing it, in
+     * microseconds.
+     */
+    public long getMaxSinkUsec() {
+        return mMaxSinkNsec / 1000;
+    }
+
+    /**
+     * Returns the rate at which packets moved through the pipeline, from the first output
+     * buffer to the most recent.
+     */
+    public double getPacketsPerSecond() {
+        long elapsedNsec = mLastPacketNsec - mFirstPacketNsec;
+        return elapsedNsec <= 0 ? 0.0 : mPacketCount * 1000000000.0 / elapsedNsec;
+    }
+
+    /**
+     * Returns the rate at which encoded data moved through the pipeline, in bytes per second.
+     */
+    public long getBytesPerSecond() {
+        long elapsedNsec = mLastPacketNsec - mFirstPacketNsec;
+        return elapsedNsec <= 0 ? 0 : (long) (mByteCount * 1000000000.0 / elapsedNsec);
+    }
+
+    @Override
+    public String toString() {
+        return "drains=" + mDrainCount + " packets=" + mPacketCount + " bytes=" + mByteCount +
+                " avgSinkUsec=" + getAverageSinkUsec() + " maxSinkUsec=" + getMaxSinkUsec() +
+                " pps=" + String.format(Locale.US, "%.1f", getPacketsPerSecond()) +
+                " Bps=" + getBytesPerSecond();
+    }
+
+    /**
+     * Sends packets to a muxer, or anything else that looks like one.  The track is added
+     * and the sink started when the format arrives.
+     */
+    public static class MuxerSink implements Sink {
+        private final SampleSink mMuxer;
+        private int mTrackIndex = -1;
+        private int mDroppedCount;
+
+        public MuxerSink(SampleSink muxer) {
+            mMuxer = muxer;
+        }
+
+        @Override
+        public void onOutputFormat(MediaFormat format) {
+            // now that we have the Magic Goodies, start the muxer
+            mTrackIndex = mMuxer.addTrack(format);
+            mMuxer.start();
+        }
+
+        @Override
+        public void onPacket(ByteBuffer buf, MediaCodec.BufferInfo info, int contents) {
+            if (mTrackIndex < 0) {
+                throw new RuntimeException("muxer hasn't started");
+            }
+            if (!mMuxer.writeSampleData(mTrackIndex, buf, info)) {
+                mDroppedCount++;
+            }
+        }
+
+        /**
+         * Returns true once the muxer has been started.  A muxer that hasn't been started
+         * has no data, and must not be stopped.
+         */
+        public boolean isStarted() {
+            return mTrackIndex >= 0;
+        }
+
+        /**
+         * Returns the number of packets the muxer dropped.
+         */
+        public int getDroppedCount() {
+            return mDroppedCount;
+        }
+    }
+
+    /**
+     * Adds packets to a CircularEncoderBuffer, and keeps the format for when the buffer's
+     * contents are saved.
+     */
+    public static class CircularBufferSink implements Sink {
+        private final CircularEncoderBuffer mEncBuffer;
+        private MediaFormat mFormat;
+
+        public CircularBufferSink(CircularEncoderBuffer encBuffer) {
+            mEncBuffer = encBuffer;
+        }
+
+        @Override
+        public void onOutputFormat(MediaFormat format) {
+            // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need for
+            // MediaMuxer.  It's unclear what else MediaMuxer might want, so rather than
+            // extract the codec-specific data and reconstruct a new MediaFormat later, we
+            // just grab it here and keep it around.
+            mFormat = format;
+        }
+
+        @Override
+        public void onPacket(ByteBuffer buf, MediaCodec.BufferInfo info, int contents) {
+            mEncBuffer.add(buf, info.flags, info.presentationTimeUs, contents);
+        }
+
+        /**
+         * Returns the format to hand to MediaMuxer, or null if we haven't seen it yet.
+         */
+        public MediaFormat getFormat() {
+            return mFormat;
+        }
+    }
+
+    /**
+     * EncoderCodec for a real MediaCodec.
+     */
+    private static class MediaCodecWrapper implements EncoderCodec {
+        private final MediaCodec mCodec;
+        private ByteBuffer[] mOutputBuffers;    // pre-Lollipop only
+
+        MediaCodecWrapper(MediaCodec codec) {
+            mCodec = codec;
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            int status = mCodec.dequeueOutputBuffer(info, timeoutUs);
+            if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = null;
+            }
+            return status;
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return mCodec.getOutputBuffer(index);
+            }
+            if (mOutputBuffers == null) {
+                mOutputBuffers = mCodec.getOutputBuffers();
+            }
+            return mOutputBuffers[index];
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return mCodec.getOutputFormat();
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            mCodec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            mCodec.signalEndOfInputStream();
+        }
+    }
+}
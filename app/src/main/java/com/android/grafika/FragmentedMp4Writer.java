@@ -0,0 +1,540 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes H.264 video to a fragmented MP4 (ISO BMFF) file.
+ * <p>
+ * An ordinary MP4 needs a complete sample table before it can be finalized, which is why
+ * MediaMuxer does all of its work at the end.  A fragmented MP4 instead has a small header
+ * (ftyp + moov) followed by self-describing moof/mdat pairs, so each fragment can go to
+ * disk as soon as it's complete.  We start a new fragment at every sync frame.  finish()
+ * just writes the last fragment and a random-access index (mfra).
+ * <p>
+ * {@link CircularEncoder} uses this for saves when fragmented output is enabled.  The
+ * buffered frames still have to be copied out, but there's no sample table to build at the
+ * end, and an interrupted save leaves a file that plays up to its last complete fragment.
+ * <p>
+ * This doesn't use any Android APIs, so it can be exercised on a desktop JVM.  Packets may
+ * be in Annex-B format (with start codes, as produced by MediaCodec) or already
+ * length-prefixed; Annex-B is converted as the data is copied in.
+ * <p>
+ * Not thread-safe.
+ */
+public class FragmentedMp4Writer {
+    private static final int TIMESCALE = 90000;     // standard for video
+    private static final int TRACK_ID = 1;
+
+    // trun sample_flags values.
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;        // depends on nothing
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;    // depends on others
+
+    private final FileChannel mChannel;
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[] mSps;
+    private final byte[] mPps;
+
+    // Box being assembled.  Reused for every header and moof.
+    private ByteBuffer mBoxBuf = ByteBuffer.allocate(4096);
+
+    // Samples in the current fragment.  Data is converted to length-prefixed form as it's
+    // copied in.  Durations are filled in when the following sample arrives.
+    private byte[] mFragmentData = new byte[256 * 1024];
+    private int mFragmentDataSize;
+    private int[] mSampleSizes = new int[64];
+    private int[] mSampleDurations = new int[64];
+    private boolean[] mSampleSync = new boolean[64];
+    private int mSampleCount;
+    private long mFragmentStartPtsUsec;
+    private long mLastPtsUsec = -1;
+    private int mLastDuration = TIMESCALE / 30;
+
+    // Fragment index, for the mfra box.
+    private long[] mFragmentTimes = new long[64];
+    private long[] mFragmentOffsets = new long[64];
+    private int mFragmentCount;
+
+    private long mFirstPtsUsec = -1;
+    private long mFilePosition;
+    private final ByteBuffer[] mGatherBufs = new ByteBuffer[3];
+    private final ByteBuffer mMdatHeader = ByteBuffer.allocate(8);
+
+    /**
+     * Prepares to write a fragmented MP4 to the channel, starting at its current position.
+     *
+     * @param sps Sequence parameter set.  A leading start code, if any, is ignored.
+     * @param pps Picture parameter set.  A leading start code, if any, is ignored.
+     */
+    public FragmentedMp4Writer(FileChannel channel, int width, int height, byte[] sps,
+            byte[] pps) throws IOException {
+        mChannel = channel;
+        mWidth = width;
+        mHeight = height;
+        mSps = AvcNalParser.stripStartCode(sps);
+        mPps = AvcNalParser.stripStartCode(pps);
+        mFilePosition = channel.position();
+        writeHeader();
+    }
+
+    /**
+     * Adds an encoded frame.  Frames must be added in presentation order, and the first
+     * must be a sync frame.
+     *
+     * @param buf Buffer holding the frame data, at [offset, offset+size).  The position and
+     *     limit are not used or altered.
+     */
+    public void addSample(ByteBuffer buf, int offset, int size, long ptsUsec, boolean isSync)
+            throws IOException {
+        if (mSampleCount == 0 && mFragmentCount == 0 && !isSync) {
+            throw new IllegalArgumentException("first sample must be a sync frame");
+        }
+        if (mFirstPtsUsec < 0) {
+            mFirstPtsUsec = ptsUsec;
+        }
+        if (mSampleCount > 0) {
+            // Now that we know when this frame starts, we know how long the previous was.
+            int duration = (int) (usecToTimescale(ptsUsec) - usecToTimescale(mLastPtsUsec));
+            if (duration > 0) {
+                mLastDuration = duration;
+            }
+            mSampleDurations[mSampleCount - 1] = mLastDuration;
+
+            if (isSync) {
+                writeFragment();
+            }
+        }
+        if (mSampleCount == 0) {
+            mFragmentStartPtsUsec = ptsUsec;
+        }
+
+        if (mSampleCount == mSampleSizes.length) {
+            int newLen = mSampleCount * 2;
+            mSampleSizes = copyOf(mSampleSizes, newLen);
+            mSampleDurations = copyOf(mSampleDurations, newLen);
+            boolean[] sync = new boolean[newLen];
+            System.arraycopy(mSampleSync, 0, sync, 0, mSampleCount);
+            mSampleSync = sync;
+        }
+        int start = mFragmentDataSize;
+        appendSampleData(buf, offset, size);
+        mSampleSizes[mSampleCount] = mFragmentDataSize - start;
+        mSampleSync[mSampleCount] = isSync;
+        mSampleCount++;
+        mLastPtsUsec = ptsUsec;
+    }
+
+    /**
+     * Writes out the final fragment and the fragment index.  The channel is not closed.
+     */
+    public void finish() throws IOException {
+        if (mSampleCount > 0) {
+            // No following frame, so reuse the previous frame's duration.
+            mSampleDurations[mSampleCount - 1] = mLastDuration;
+            writeFragment();
+        }
+        writeIndex();
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long getBytesWritten() {
+        return mFilePosition;
+    }
+
+    /**
+     * Writes the ftyp and moov boxes.
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer bb = mBoxBuf;
+        bb.clear();
+
+        int ftyp = startBox(bb, "ftyp");
+        putFourCC(bb, "isom");
+        bb.putInt(0x200);
+        putFourCC(bb, "isom");
+        putFourCC(bb, "iso6");
+        putFourCC(bb, "avc1");
+        putFourCC(bb, "mp41");
+        endBox(bb, ftyp);
+
+        int moov = startBox(bb, "moov");
+        int mvhd = startFullBox(bb, "mvhd", 0, 0);
+        bb.putInt(0);                   // creation_time
+        bb.putInt(0);                   // modification_time
+        bb.putInt(1000);                // timescale
+        bb.putInt(0);                   // duration (unknown; given by fragments)
+        bb.putInt(0x00010000);          // rate 1.0
+        bb.putShort((short) 0x0100);    // volume 1.0
+        bb.putShort((short) 0);
+        bb.putInt(0);
+        bb.putInt(0);
+        putMatrix(bb);
+        for (int i = 0; i < 6; i++) {
+            bb.putInt(0);               // pre_defined
+        }
+        bb.putInt(TRACK_ID + 1);        // next_track_ID
+        endBox(bb, mvhd);
+
+        int trak = startBox(bb, "trak");
+        int tkhd = startFullBox(bb, "tkhd", 0, 0x3);    // enabled, in movie
+        bb.putInt(0);
+        bb.putInt(0);
+        bb.putInt(TRACK_ID);
+        bb.putInt(0);
+        bb.putInt(0);                   // duration
+        bb.putInt(0);
+        bb.putInt(0);
+        bb.putShort((short) 0);         // layer
+        bb.putShort((short) 0);         // alternate_group
+        bb.putShort((short) 0);         // volume
+        bb.putShort((short) 0);
+        putMatrix(bb);
+        bb.putInt(mWidth << 16);
+        bb.putInt(mHeight << 16);
+        endBox(bb, tkhd);
+
+        int mdia = startBox(bb, "mdia");
+        int mdhd = startFullBox(bb, "mdhd", 0, 0);
+        bb.putInt(0);
+        bb.putInt(0);
+        bb.putInt(TIMESCALE);
+        bb.putInt(0);
+        bb.putShort((short) 0x55c4);    // "und"
+        bb.putShort((short) 0);
+        endBox(bb, mdhd);
+
+        int hdlr = startFullBox(bb, "hdlr", 0, 0);
+        bb.putInt(0);
+        putFourCC(bb, "vide");
+        bb.putInt(0);
+        bb.putInt(0);
+        bb.putInt(0);
+        putCString(bb, "VideoHandler");
+        endBox(bb, hdlr);
+
+        int minf = startBox(bb, "minf");
+        int vmhd = startFullBox(bb, "vmhd", 0, 1);
+        bb.putShort((short) 0);         // graphicsmode
+        bb.putShort((short) 0);         // opcolor
+        bb.putShort((short) 0);
+        bb.putShort((short) 0);
+        endBox(bb, vmhd);
+
+        int dinf = startBox(bb, "dinf");
+        int dref = startFullBox(bb, "dref", 0, 0);
+        bb.putInt(1);
+        int url = startFullBox(bb, "url ", 0, 1);       // data is in this file
+        endBox(bb, url);
+        endBox(bb, dref);
+        endBox(bb, dinf);
+
+        int stbl = startBox(bb, "stbl");
+        int stsd = startFullBox(bb, "stsd", 0, 0);
+        bb.putInt(1);
+        int avc1 = startBox(bb, "avc1");
+        bb.putInt(0);                   // reserved
+        bb.putShort((short) 0);
+        bb.putShort((short) 1);         // data_reference_index
+        bb.putShort((short) 0);
+        bb.putShort((short) 0);
+        bb.putInt(0);
+        bb.putInt(0);
+        bb.putInt(0);
+        bb.putShort((short) mWidth);
+        bb.putShort((short) mHeight);
+        bb.putInt(0x00480000);          // 72 dpi
+        bb.putInt(0x00480000);
+        bb.putInt(0);
+        bb.putShort((short) 1);         // frame_count
+        for (int i = 0; i < 32; i++) {
+            bb.put((byte) 0);           // compressorname
+        }
+        bb.putShort((short) 0x0018);    // depth
+        bb.putShort((short) -1);
+        int avcC = startBox(bb, "avcC");
+        bb.put((byte) 1);               // configurationVersion
+        bb.put(mSps[1]);                // AVCProfileIndication
+        bb.put(mSps[2]);                // profile_compatibility
+        bb.put(mSps[3]);                // AVCLevelIndication
+        bb.put((byte) 0xff);            // 4-byte NAL unit lengths
+        bb.put((byte) 0xe1);            // one SPS
+        bb.putShort((short) mSps.length);
+        bb.put(mSps);
+        bb.put((byte) 1);               // one PPS
+        bb.putShort((short) mPps.length);
+        bb.put(mPps);
+        endBox(bb, avcC);
+        endBox(bb, avc1);
+        endBox(bb, stsd);
+
+        // The sample tables are empty; the samples are described by the fragments.
+        int stts = startFullBox(bb, "stts", 0, 0);
+        bb.putInt(0);
+        endBox(bb, stts);
+        int stsc = startFullBox(bb, "stsc", 0, 0);
+        bb.putInt(0);
+        endBox(bb, stsc);
+        int stsz = startFullBox(bb, "stsz", 0, 0);
+        bb.putInt(0);
+        bb.putInt(0);
+        endBox(bb, stsz);
+        int stco = startFullBox(bb, "stco", 0, 0);
+        bb.putInt(0);
+        endBox(bb, stco);
+        endBox(bb, stbl);
+        endBox(bb, minf);
+        endBox(bb, mdia);
+        endBox(bb, trak);
+
+        int mvex = startBox(bb, "mvex");
+        int trex = startFullBox(bb, "trex", 0, 0);
+        bb.putInt(TRACK_ID);
+        bb.putInt(1);                   // default_sample_description_index
+        bb.putInt(0);
+        bb.putInt(0);
+        bb.putInt(0);
+        endBox(bb, trex);
+        endBox(bb, mvex);
+        endBox(bb, moov);
+
+        bb.flip();
+        writeFully(bb);
+    }
+
+    /**
+     * Writes the buffered samples as a moof/mdat pair, and resets for the next fragment.
+     */
+    private void writeFragment() throws IOException {
+        int sampleCount = mSampleCount;
+        long baseTime = usecToTimescale(mFragmentStartPtsUsec);
+
+        ensureBoxCapacity(256 + sampleCount * 12);
+        ByteBuffer bb = mBoxBuf;
+        bb.clear();
+
+        int moof = startBox(bb, "moof");
+        int mfhd = startFullBox(bb, "mfhd", 0, 0);
+        bb.putInt(mFragmentCount + 1);      // sequence_number
+        endBox(bb, mfhd);
+
+        int traf = startBox(bb, "traf");
+        int tfhd = startFullBox(bb, "tfhd", 0, 0x020000);  // default-base-is-moof
+        bb.putInt(TRACK_ID);
+        endBox(bb, tfhd);
+        int tfdt = startFullBox(bb, "tfdt", 1, 0);
+        bb.putLong(baseTime);               // baseMediaDecodeTime
+        endBox(bb, tfdt);
+
+        // data-offset, sample-duration, sample-size, sample-flags present
+        int trun = startFullBox(bb, "trun", 0, 0x000701);
+        bb.putInt(sampleCount);
+        int dataOffsetPos = bb.position();
+        bb.putInt(0);                       // data_offset, filled in below
+        for (int i = 0; i < sampleCount; i++) {
+            bb.putInt(mSampleDurations[i]);
+            bb.putInt(mSampleSizes[i]);
+            bb.putInt(mSampleSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        endBox(bb, trun);
+        endBox(bb, traf);
+        endBox(bb, moof);
+
+        // The sample data starts right after the mdat header, which follows the moof.
+        bb.putInt(dataOffsetPos, bb.position() - moof + 8);
+        bb.flip();
+
+        mMdatHeader.clear();
+        mMdatHeader.putInt(8 + mFragmentDataSize);
+        putFourCC(mMdatHeader, "mdat");
+        mMdatHeader.flip();
+
+        if (mFragmentCount == mFragmentTimes.length) {
+            mFragmentTimes = copyOf(mFragmentTimes, mFragmentCount * 2);
+            mFragmentOffsets = copyOf(mFragmentOffsets, mFragmentCount * 2);
+        }
+        mFragmentTimes[mFragmentCount] = baseTime;
+        mFragmentOffsets[mFragmentCount] = mFilePosition;
+        mFragmentCount++;
+
+        // One gathering write for the moof, the mdat header, and the sample data.
+        mGatherBufs[0] = bb;
+        mGatherBufs[1] = mMdatHeader;
+        mGatherBufs[2] = ByteBuffer.wrap(mFragmentData, 0, mFragmentDataSize);
+        long remaining = bb.remaining() + mMdatHeader.remaining() + mFragmentDataSize;
+        while (remaining > 0) {
+            long written = mChannel.write(mGatherBufs);
+            mFilePosition += written;
+            remaining -= written;
+        }
+        mGatherBufs[2] = null;
+
+        mSampleCount = 0;
+        mFragmentDataSize = 0;
+    }
+
+    /**
+     * Writes the mfra box, which lets players find the fragments without scanning the file.
+     */
+    private void writeIndex() throws IOException {
+        ensureBoxCapacity(64 + mFragmentCount * 19);
+        ByteBuffer bb = mBoxBuf;
+        bb.clear();
+
+        int mfra = startBox(bb, "mfra");
+        int tfra = startFullBox(bb, "tfra", 1, 0);
+        bb.putInt(TRACK_ID);
+        bb.putInt(0);                       // 1-byte traf/trun/sample numbers
+        bb.putInt(mFragmentCount);
+        for (int i = 0; i < mFragmentCount; i++) {
+            bb.putLong(mFragmentTimes[i]);
+            bb.putLong(mFragmentOffsets[i]);
+            bb.put((byte) 1);               // traf_number
+            bb.put((byte) 1);               // trun_number
+            bb.put((byte) 1);               // sample_number
+        }
+        endBox(bb, tfra);
+        int mfro = startFullBox(bb, "mfro", 0, 0);
+        bb.putInt(bb.position() - mfra + 4);    // size of the enclosing mfra
+        endBox(bb, mfro);
+        endBox(bb, mfra);
+
+        bb.flip();
+        writeFully(bb);
+    }
+
+    /**
+     * Copies a frame into the fragment data, converting Annex-B start codes to 4-byte
+     * lengths.
+     */
+    private void appendSampleData(ByteBuffer buf, int offset, int size) {
+        // Worst case, every 3-byte start code turns into a 4-byte length.
+        ensureDataCapacity(mFragmentDataSize + size + size / 3 + 4);
+
+        int end = offset + size;
+        int nalStart = AvcNalParser.findStartCode(buf, offset, end);
+        if (nalStart != offset) {
+            // No start code, so assume it's already length-prefixed.
+            for (int i = offset; i < end; i++) {
+                mFragmentData[mFragmentDataSize++] = buf.get(i);
+            }
+            return;
+        }
+        while (nalStart < end) {
+            int dataStart = nalStart + AvcNalParser.startCodeLength(buf, nalStart);
+            int next = AvcNalParser.findStartCode(buf, dataStart, end);
+            int nalLen = next - dataStart;
+            putInt(mFragmentData, mFragmentDataSize, nalLen);
+            mFragmentDataSize += 4;
+            for (int i = dataStart; i < next; i++) {
+                mFragmentData[mFragmentDataSize++] = buf.get(i);
+            }
+            nalStart = next;
+        }
+    }
+
+    private long usecToTimescale(long ptsUsec) {
+        return (ptsUsec - mFirstPtsUsec) * TIMESCALE / 1000000;
+    }
+
+    private void writeFully(ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            mFilePosition += mChannel.write(bb);
+        }
+    }
+
+    private void ensureBoxCapacity(int size) {
+        if (mBoxBuf.capacity() < size) {
+            mBoxBuf = ByteBuffer.allocate(size);
+        }
+    }
+
+    private void ensureDataCapacity(int size) {
+        if (mFragmentData.length < size) {
+            byte[] data = new byte[Math.max(size, mFragmentData.length * 2)];
+            System.arraycopy(mFragmentData, 0, data, 0, mFragmentDataSize);
+            mFragmentData = data;
+        }
+    }
+
+    private static int startBox(ByteBuffer bb, String type) {
+        int start = bb.position();
+        bb.putInt(0);                       // size, filled in by endBox()
+        putFourCC(bb, type);
+        return start;
+    }
+
+    private static int startFullBox(ByteBuffer bb, String type, int version, int flags) {
+        int start = startBox(bb, type);
+        bb.putInt((version << 24) | (flags & 0xffffff));
+        return start;
+    }
+
+    private static void endBox(ByteBuffer bb, int start) {
+        bb.putInt(start, bb.position() - start);
+    }
+
+    private static void putFourCC(ByteBuffer bb, String fourcc) {
+        for (int i = 0; i < 4; i++) {
+            bb.put((byte) fourcc.charAt(i));
+        }
+    }
+
+    private static void putCString(ByteBuffer bb, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            bb.put((byte) str.charAt(i));
+        }
+        bb.put((byte) 0);
+    }
+
+    private static void putMatrix(ByteBuffer bb) {
+        // unity matrix
+        bb.putInt(0x00010000);
+        bb.putInt(0);
+        bb.putInt(0);
+        bb.putInt(0);
+        bb.putInt(0x00010000);
+        bb.putInt(0);
+        bb.putInt(0);
+        bb.putInt(0);
+        bb.putInt(0x40000000);
+    }
+
+    private static void putInt(byte[] data, int offset, int val) {
+        data[offset] = (byte) (val >> 24);
+        data[offset + 1] = (byte) (val >> 16);
+        data[offset + 2] = (byte) (val >> 8);
+        data[offset + 3] = (byte) val;
+    }
+
+    private static int[] copyOf(int[] array, int newLength) {
+        int[] out = new int[newLength];
+        System.arraycopy(array, 0, out, 0, Math.min(array.length, newLength));
+        return out;
+    }
+
+    private static long[] copyOf(long[] array, int newLength) {
+        long[] out = new long[newLength];
+        System.arraycopy(array, 0, out, 0, Math.min(array.length, newLength));
+        return out;
+    }
+}
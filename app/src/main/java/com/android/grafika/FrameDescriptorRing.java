@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.grafika;
+
+/**
+ * Fixed-size queue of frame descriptors (texture transform and time stamp), for passing
+ * frames from the thread that latches them to the thread that encodes them.
+ * <p>
+ * The descriptors are preallocated, and values are copied in and out, so steady-state use
+ * doesn't allocate.
+ * <p>
+ * The ring bounds the number of frames in flight.  What happens when the consumer falls
+ * behind and it fills up depends on the policy: POLICY_BLOCK makes the producer wait for
+ * room (giving up and dropping the frame after BLOCK_TIMEOUT_MSEC, so a wedged consumer
+ * can't hang the producer), POLICY_DROP_NEWEST drops the new frame, and POLICY_DROP_OLDEST
+ * replaces the oldest queued frame with the new one, which keeps latency down.
+ * <p>
+ * offer() reports whether the ring was empty, so the producer only has to wake the
+ * consumer for the first of a batch of frames, provided the consumer drains the ring
+ * completely each time it's woken.
+ */
+public class FrameDescriptorRing {
+    // Overflow policies.
+    public static final int POLICY_BLOCK = 0;
+    public static final int POLICY_DROP_NEWEST = 1;
+    public static final int POLICY_DROP_OLDEST = 2;
+
+    // Returned by offer().
+    public static final int OFFER_DROPPED = 0;
+    public static final int OFFER_QUEUED = 1;
+    public static final int OFFER_QUEUED_WAS_EMPTY = 2;
+
+    // Longest we'll block the producer under POLICY_BLOCK.
+    public static final int BLOCK_TIMEOUT_MSEC = 100;
+
+    private static final int MATRIX_SIZE = 16;
+
+    private final int mPolicy;
+    private final float[][] mTransforms;
+    private final long[] mTimestamps;
+    private int mHead;      // next to poll
+    private int mCount;
+    private int mDroppedCount;
+    private int mCoalescedCount;
+    private int mBlockedCount;
+
+    /**
+     * Creates a ring that drops new frames when full.
+     */
+    public FrameDescriptorRing(int capacity) {
+        this(capacity, POLICY_DROP_NEWEST);
+    }
+
+    /**
+     * Creates a ring with the specified overflow policy.
+     */
+    public FrameDescriptorRing(int capacity, int policy) {
+        if (capacity <= 0) {
+            throw new RuntimeException("invalid capacity " + capacity);
+        }
+        mPolicy = policy;
+        mTransforms = new float[capacity][MATRIX_SIZE];
+        mTimestamps = new long[capacity];
+    }
+
+    /**
+     * Adds a frame.  The transform is copied.
+     *
+     * @return OFFER_QUEUED_WAS_EMPTY if the ring was empty (so the consumer needs to be woken
+     *     up), OFFER_QUEUED if it wasn't, or OFFER_DROPPED if the frame was dropped.
+     */
+    public synchronized int offer(float[] transform, long timestampNanos) {
+        final int capacity = mTimestamps.length;
+        if (mCount == capacity) {
+            switch (mPolicy) {
+                case POLICY_BLOCK:
+                    mBlockedCount++;
+                    long deadline = System.currentTimeMillis() + BLOCK_TIMEOUT_MSEC;
+                    long remaining = BLOCK_TIMEOUT_MSEC;
+                    while (mCount == capacity && remaining > 0) {
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException ie) { /* not expected */ }
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    if (mCount == capacity) {
+                        mDroppedCount++;
+                        return OFFER_DROPPED;
+                    }
+                    break;
+                case POLICY_DROP_OLDEST:
+                    mHead = (mHead + 1) % capacity;
+                    mCount--;
+                    mCoalescedCount++;
+                    break;
+                default:
+                    mDroppedCount++;
+                    return OFFER_DROPPED;
+            }
+        }
+        int index = (mHead + mCount) % capacity;
+        System.arraycopy(transform, 0, mTransforms[index], 0, MATRIX_SIZE);
+        mTimestamps[index] = timestampNanos;
+        mCount++;
+        return mCount == 1 ? OFFER_QUEUED_WAS_EMPTY : OFFER_QUEUED;
+    }
+
+    /**
+     * Removes the oldest frame, copying its transform into "transform".
+     *
+     * @return The frame's time stamp, or -1 if the ring is empty.
+     */
+    public synchronized long poll(float[] transform) {
+        if (mCount == 0) {
+            return -1;
+        }
+        System.arraycopy(mTransforms[mHead], 0, transform, 0, MATRIX_SIZE);
+        long timestamp = mTimestamps[mHead];
+        mHead = (mHead + 1) % mTimestamps.length;
+        mCount--;
+        if (mPolicy == POLICY_BLOCK) {
+            notifyAll();
+        }
+        return timestamp;
+    }
+
+    /**
+     * Removes all queued frames, copying the newest one's transform into "transform".  The
+     * others are counted as coalesced.
+     *
+     * @return The newest frame's time stamp, or -1 if the ring is empty.
+     */
+    public synchronized long pollNewest(float[] transform) {
+        if (mCount == 0) {
+            return -1;
+        }
+        int newest = (mHead + mCount - 1) % mTimestamps.length;
+        System.arraycopy(mTransforms[newest], 0, transform, 0, MATRIX_SIZE);
+        long timestamp = mTimestamps[newest];
+        mCoalescedCount += mCount - 1;
+        mHead = mCount = 0;
+        notifyAll();
+        return timestamp;
+    }
+
+    /**
+     * Discards any queued frames, counting them as dropped.
+     *
+     * @return The number of frames discarded.
+     */
+    public synchronized int dropQueued() {
+        int count = mCount;
+        mDroppedCount += count;
+        mHead = mCount = 0;
+        notifyAll();
+        return count;
+    }
+
+    /**
+     * Discards any queued frames.
+     */
+    public synchronized void clear() {
+        mHead = mCount = 0;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of frames dropped because the ring was full.
+     */
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the number of queued frames replaced by newer ones (POLICY_DROP_OLDEST).
+     */
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Returns the number of times offer() had to wait for room (POLICY_BLOCK).
+     */
+    public synchronized int getBlockedCount() {
+        return mBlockedCount;
+    }
+}
@@ -28,7 +28,6 @@ import com.android.grafika.gles.WindowSurface;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 /**
  * Base class for generated movies.
@@ -44,19 +43,35 @@ public abstract class GeneratedMovie implements Content {
     protected boolean mMovieReady = false;
 
     // "live" state during recording
-    private MediaCodec.BufferInfo mBufferInfo;
     private MediaCodec mEncoder;
-    private MediaMuxer mMuxer;
+    private MuxerWriter mMuxer;
+    private EncoderPipeline.MuxerSink mMuxerSink;
+    private EncoderPipeline mPipeline;
     private EglCore mEglCore;
     private WindowSurface mInputSurface;
-    private int mTrackIndex;
-    private boolean mMuxerStarted;
 
     /**
      * Creates the movie content.  Usually called from an async task thread.
      */
     public abstract void create(File outputFile, ContentManager.ProgressUpdater prog);
 
+    /**
+     * Returns a description of everything that determines the generated movie, such as its
+     * size, bit rate, and frame count.  If this changes, the movie has to be regenerated
+     * (see ContentManifest).
+     */
+    public abstract String getParameters();
+
+    /**
+     * Formats the common movie parameters.  The version identifies the frame-drawing code;
+     * sub-classes bump it when that changes.
+     */
+    protected static String formatParameters(String name, int version, String mimeType,
+            int width, int height, int bitRate, int framesPerSecond, int numFrames) {
+        return name + " v" + version + " " + mimeType + " " + width + "x" + height + " " +
+                bitRate + "bps " + framesPerSecond + "fps " + numFrames + " frames";
+    }
+
     /**
      * Returns true if the codec has a software implementation.
      */
@@ -71,8 +86,6 @@ public abstract class GeneratedMovie implements Content {
      */
     protected void prepareEncoder(String mimeType, int width, int height, int bitRate,
             int framesPerSecond, File outputFile) throws IOException {
-        mBufferInfo = new MediaCodec.BufferInfo();
-
         MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
 
         // Set some properties.  Failing to specify some of these can cause the MediaCodec
@@ -86,7 +99,7 @@ public abstract class GeneratedMovie implements Content {
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(mimeType);
+        mEncoder = CodecPool.getInstance().acquireEncoder(mimeType, width, height);
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         Log.v(TAG, "encoder is " + mEncoder.getCodecInfo().getName());
         Surface surface;
@@ -116,11 +129,14 @@ public abstract class GeneratedMovie implements Content {
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
         if (VERBOSE) Log.d(TAG, "output will go to " + outputFile);
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-
-        mTrackIndex = -1;
-        mMuxerStarted = false;
+        //
+        // The muxer is fed from its own thread (see MuxerWriter), so a slow write doesn't
+        // hold up the encoder.
+        mMuxer = new MuxerWriter(new MediaMuxer(outputFile.toString(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4));
+        mMuxerSink = new EncoderPipeline.MuxerSink(mMuxer);
+        mPipeline = new EncoderPipeline(EncoderPipeline.wrap(mEncoder), mMuxerSink,
+                width, height);
     }
 
     /**
@@ -129,8 +145,10 @@ public abstract class GeneratedMovie implements Content {
     protected void releaseEncoder() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
         if (mEncoder != null) {
+            // Hand the codec back to the pool, rather than releasing it, so the next
+            // recording doesn't have to wait for a new one.
             mEncoder.stop();
-            mEncoder.release();
+            CodecPool.getInstance().recycle(mEncoder);
             mEncoder = null;
         }
         if (mInputSurface != null) {
@@ -141,8 +159,15 @@ public abstract class GeneratedMovie implements Content {
             mEglCore.release();
             mEglCore = null;
         }
+        if (mPipeline != null) {
+            Log.d(TAG, "pipeline stats: " + mPipeline);
+            mPipeline = null;
+        }
         if (mMuxer != null) {
-            mMuxer.stop();
+            // stop() throws an exception if you haven't fed it any data.
+            if (mMuxerSink.isStarted()) {
+                mMuxer.stop();
+            }
             mMuxer.release();
             mMuxer = null;
         }
@@ -171,81 +196,6 @@ public abstract class GeneratedMovie implements Content {
      * Calling this with endOfStream set should be done once, right before stopping the muxer.
      */
     protected void drainEncoder(boolean endOfStream) {
-        final int TIMEOUT_USEC = 10000;
-        if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
-
-        if (endOfStream) {
-            if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
-            mEncoder.signalEndOfInputStream();
-        }
-
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-        while (true) {
-            int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // no output available yet
-                if (!endOfStream) {
-                    break;      // out of while
-                } else {
-                    if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
-                }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // not expected for an encoder
-                encoderOutputBuffers = mEncoder.getOutputBuffers();
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
-            } else if (encoderStatus < 0) {
-                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
-                        encoderStatus);
-                // let's ignore it
-            } else {
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                            " was null");
-                }
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
-                    // adjust the ByteBuffer values to match BufferInfo
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer");
-                }
-
-                mEncoder.releaseOutputBuffer(encoderStatus, false);
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (!endOfStream) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                    } else {
-                        if (VERBOSE) Log.d(TAG, "end of stream reached");
-                    }
-                    break;      // out of while
-                }
-            }
-        }
+        mPipeline.drain(endOfStream);
     }
 }
@@ -140,10 +140,8 @@ public class MainActivity extends ListActivity {
                 android.R.layout.two_line_list_item, new String[] { TITLE, DESCRIPTION },
                 new int[] { android.R.id.text1, android.R.id.text2 } ));
 
-        ContentManager cm = ContentManager.getInstance();
-        if (!cm.isContentCreated(this)) {
-            ContentManager.getInstance().createAll(this);
-        }
+        // Generate whatever content is missing or stale.
+        ContentManager.getInstance().createStale(this);
     }
 
     /**
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Circular data store backed by a memory-mapped file.
+ * <p>
+ * The file is preallocated to the full capacity of the ring, and mapped in fixed-size
+ * regions.  Mapping the whole thing at once would need a contiguous chunk of address space
+ * as large as the file, which a 32-bit process may not have.  The data lives in the page
+ * cache rather than the heap, so heap use stays flat no matter how long the retention
+ * window is.
+ * <p>
+ * get() returns a view of the mapped region when the packet doesn't cross a region
+ * boundary, so a save streams straight from the mapping into the muxer.
+ */
+public class MappedDataStore extends CircularDataStore {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    // 64MB regions.  Large compared to packets, so few of them straddle a boundary.
+    public static final int REGION_SIZE = 64 * 1024 * 1024;
+
+    private final int mCapacity;
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+
+    // Each region is mapped once.  We write through one view and hand the other out to
+    // readers, so a concurrent reader changing position/limit can't disturb our writes.
+    private ByteBuffer[] mWriteViews;
+    private ByteBuffer[] mReadViews;
+
+    /**
+     * Creates (or truncates) the backing file, sizes it, and maps it.
+     *
+     * @param file The file to hold the ring.  It is not deleted by {@link #release()}.
+     * @param capacity Size of the ring, in bytes.
+     */
+    public MappedDataStore(File file, int capacity) throws IOException {
+        mCapacity = capacity;
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(capacity);
+            mChannel = mFile.getChannel();
+
+            int regionCount = (capacity + REGION_SIZE - 1) / REGION_SIZE;
+            mWriteViews = new ByteBuffer[regionCount];
+            mReadViews = new ByteBuffer[regionCount];
+            for (int i = 0; i < regionCount; i++) {
+                long start = (long) i * REGION_SIZE;
+                int size = (int) Math.min(REGION_SIZE, capacity - start);
+                MappedByteBuffer region =
+                        mChannel.map(FileChannel.MapMode.READ_WRITE, start, size);
+                mWriteViews[i] = region;
+                mReadViews[i] = region.duplicate();
+            }
+        } catch (IOException ioe) {
+            release();
+            throw ioe;
+        }
+        if (VERBOSE) {
+            Log.d(TAG, "mapped " + file + " capacity=" + capacity + " regions=" +
+                    mWriteViews.length);
+        }
+    }
+
+    @Override
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    @Override
+    public void put(int offset, ByteBuffer buf, int size) {
+        final int origLimit = buf.limit();
+        while (size > 0) {
+            if (offset == mCapacity) {
+                offset = 0;
+            }
+            int regionIndex = offset / REGION_SIZE;
+            int regionOffset = offset % REGION_SIZE;
+            ByteBuffer region = mWriteViews[regionIndex];
+            int count = Math.min(size, region.capacity() - regionOffset);
+
+            // Copy "count" bytes without allocating a slice.
+            region.clear();
+            region.position(regionOffset);
+            buf.limit(buf.position() + count);
+            region.put(buf);
+            buf.limit(origLimit);
+
+            offset += count;
+            size -= count;
+        }
+    }
+
+    @Override
+    public ByteBuffer get(int offset, int length, MediaCodec.BufferInfo info) {
+        int regionIndex = offset / REGION_SIZE;
+        int regionOffset = offset % REGION_SIZE;
+        ByteBuffer region = mReadViews[regionIndex];
+        if (regionOffset + length <= region.capacity()) {
+            // one region; return the mapping itself to avoid copying data
+            info.offset = regionOffset;
+            return region;
+        }
+
+        // Spans two regions, or wraps around the end of the ring.
+        ByteBuffer tempBuf = getStagingBuffer(length);
+        while (length > 0) {
+            if (offset == mCapacity) {
+                offset = 0;
+            }
+            regionIndex = offset / REGION_SIZE;
+            regionOffset = offset % REGION_SIZE;
+            ByteBuffer src = mWriteViews[regionIndex];
+            int count = Math.min(length, src.capacity() - regionOffset);
+            src.clear();
+            src.position(regionOffset);
+            src.limit(regionOffset + count);
+            tempBuf.put(src);
+            offset += count;
+            length -= count;
+        }
+        tempBuf.flip();
+        info.offset = 0;
+        return tempBuf;
+    }
+
+    /**
+     * Closes the backing file.  The mappings are released when they're garbage collected.
+     */
+    @Override
+    public void release() {
+        mWriteViews = null;
+        mReadViews = null;
+        try {
+            if (mChannel != null) {
+                mChannel.close();
+                mChannel = null;
+            }
+            if (mFile != null) {
+                mFile.close();
+                mFile = null;
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "failed closing ring file", ioe);
+        }
+    }
+}
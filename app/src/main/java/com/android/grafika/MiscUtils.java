@@ -18,12 +18,14 @@ package com.android.grafika;
 
 import android.app.Activity;
 import android.content.Context;
+import android.media.MediaFormat;
 import android.util.Log;
 import android.view.Display;
 import android.view.WindowManager;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -86,6 +88,20 @@ public class MiscUtils {
         return regex.toString();
     }
 
+    /**
+     * Creates an H.264 MediaFormat suitable for MediaMuxer from cached parameter sets, so we
+     * don't need to wait for the encoder to report its output format.
+     *
+     * @param sps Sequence parameter set, as returned by {@link AvcNalParser#getSps()}.
+     * @param pps Picture parameter set, as returned by {@link AvcNalParser#getPps()}.
+     */
+    public static MediaFormat createAvcFormat(int width, int height, byte[] sps, byte[] pps) {
+        MediaFormat format = MediaFormat.createVideoFormat("video/avc", width, height);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(AvcNalParser.withStartCode(sps)));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(AvcNalParser.withStartCode(pps)));
+        return format;
+    }
+
     /**
      * Obtains the approximate refresh time, in nanoseconds, of the default display associated
      * with the activity.
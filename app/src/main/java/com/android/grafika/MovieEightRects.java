@@ -31,6 +31,8 @@ import java.io.IOException;
 public class MovieEightRects extends GeneratedMovie {
     private static final String TAG = MainActivity.TAG;
 
+    private static final int VERSION = 1;       // bump when generateFrame() changes
+
     private static final String MIME_TYPE = "video/avc";
     private static final int WIDTH = 320;
     private static final int HEIGHT = 240;
@@ -46,6 +48,12 @@ public class MovieEightRects extends GeneratedMovie {
     private static final int TEST_G1 = 50;
     private static final int TEST_B1 = 186;
 
+    @Override
+    public String getParameters() {
+        return formatParameters("MovieEightRects", VERSION, MIME_TYPE, WIDTH, HEIGHT, BIT_RATE,
+                FRAMES_PER_SECOND, NUM_FRAMES);
+    }
+
     @Override
     public void create(File outputFile, ContentManager.ProgressUpdater prog) {
         if (mMovieReady) {
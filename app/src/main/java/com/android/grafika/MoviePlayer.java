@@ -19,7 +19,9 @@ package com.android.grafika;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.util.Log;
 import android.view.Surface;
@@ -28,17 +30,43 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 
 /**
  * Plays the video track from a movie file to a Surface.
  * <p>
+ * By default, each play() sets up a decoder and releases it, along with the extractor,
+ * when playback ends.  In session mode (see {@link #setSessionMode(boolean)}) the extractor
+ * and the configured decoder are kept between play() calls, and the next play() just
+ * rewinds the extractor and flushes the decoder.  That also works across files: switching
+ * with {@link #setSourceFile(File)} to a file with the same format keeps the decoder.
+ * Starting a codec takes tens to hundreds of milliseconds, so replays start much sooner.
+ * Call {@link #release()} when the session is over.
+ * <p>
+ * In async mode (see {@link #setAsyncMode(boolean)}) the decoder runs with a
+ * MediaCodec.Callback instead of being polled.  Input is fed from the callback thread as soon
+ * as the codec asks for it, and play() sleeps until a decoded frame arrives.  Frames are still
+ * released on the play() thread, so FrameCallback sees them in order.
+ * <p>
+ * While play() is running, {@link #seekTo(long, int)} moves playback.  In scrub mode (see
+ * {@link #setScrubMode(boolean)}) the player shows the frame it was asked for and then waits
+ * for the next seek, rather than playing on.  Seek requests that arrive while a seek is
+ * still decoding replace it, so rapid scrubbing only decodes the latest position.
+ * <p>
+ * Except for requestStop(), methods must not be called while play() is running.
+ * <p>
  * TODO: needs more advanced shuttle controls (pause/resume, skip)
  */
 public class MoviePlayer {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
+    /** Seek to the sync frame at or before the requested time.  Fast. */
+    public static final int SEEK_PREVIOUS_SYNC = 0;
+    /** Seek to the frame at the requested time, decoding from the sync frame before it. */
+    public static final int SEEK_EXACT = 1;
+
     // Declare this here to reduce allocations.
     private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
 
@@ -52,6 +80,41 @@ public class MoviePlayer {
     private int mVideoWidth;
     private int mVideoHeight;
 
+    // Playback state.  In session mode this outlives play().
+    private boolean mSessionMode;
+    private MediaExtractor mExtractor;
+    private int mTrackIndex;
+    private MediaFormat mTrackFormat;
+    private MediaCodec mDecoder;
+    private MediaFormat mDecoderFormat;     // format mDecoder was configured with
+    private boolean mRewindNeeded;          // extractor or decoder have been used
+
+    // Async mode.  Codec callbacks arrive on mCallbackThread.  The fields after mAsyncLock
+    // are guarded by it, as is the extractor while async playback is active.
+    private boolean mAsyncMode;
+    private boolean mDecoderAsync;          // mDecoder was configured with a callback
+    private HandlerThread mCallbackThread;
+    private final Object mAsyncLock = new Object();
+    private boolean mAsyncActive;           // play() wants input fed and output queued
+    private boolean mAsyncInputDone;
+    private final ArrayDeque<PendingOutput> mPendingOutput = new ArrayDeque<PendingOutput>();
+    private MediaCodec.CodecException mAsyncError;
+
+    // Seeking.  The pending request and the sample index are guarded by mSeekLock; the rest
+    // is play() thread only.  The index is built on a background thread the first time it's
+    // needed, since that can take a full pass over the file, and a seek isn't acted on until
+    // the index is ready.
+    private final Object mSeekLock = new Object();
+    private long mPendingSeekUs = -1;
+    private int mPendingSeekMode;
+    private volatile boolean mScrubMode;
+    private SampleIndex mSampleIndex;       // built on first seek
+    private boolean mIndexBuilding;         // index thread is running
+    private IOException mIndexError;        // index couldn't be built
+    private File mIndexDir;
+    private long mSkipUntilUs = -1;         // don't render frames before this
+    private boolean mHolding;               // scrub mode: frame shown, waiting for a seek
+
 
     /**
      * Interface to be implemented by class that manages playback UI.
@@ -74,6 +137,13 @@ public class MoviePlayer {
          */
         void preRender(long presentationTimeUsec);
 
+        /**
+         * Called after preRender().  Returns the System.nanoTime() value at which the frame
+         * should be displayed, or -1 to display it as soon as it's released.  A display
+         * time is only used on API 21+.
+         */
+        long getRenderTimeNs();
+
         /**
          * Called immediately after the frame render call returns.  The frame may not have
          * actually been rendered yet.
@@ -82,8 +152,9 @@ public class MoviePlayer {
         void postRender();
 
         /**
-         * Called after the last frame of a looped movie has been rendered.  This allows the
-         * callback to adjust its expectations of the next presentation time stamp.
+         * Called after the last frame of a looped movie has been rendered, and after a seek.
+         * This allows the callback to adjust its expectations of the next presentation time
+         * stamp.
          */
         void loopReset();
     }
@@ -99,21 +170,116 @@ public class MoviePlayer {
      */
     public MoviePlayer(File sourceFile, Surface outputSurface, FrameCallback frameCallback)
             throws IOException {
-        mSourceFile = sourceFile;
         mOutputSurface = outputSurface;
         mFrameCallback = frameCallback;
 
-        // Pop the file open and pull out the video characteristics.
-        // TODO: consider leaving the extractor open.  Should be able to just seek back to
-        //       the start after each iteration of play.  Need to rearrange the API a bit --
-        //       currently play() is taking an all-in-one open+work+release approach.
-        MediaExtractor extractor = null;
+        // Pop the file open and pull out the video characteristics.  We keep the extractor
+        // open for play().
+        openSource(sourceFile);
+    }
+
+    /**
+     * Switches to a different file.  If it has the same format as the current one, the
+     * decoder is kept; otherwise a new one is created by the next play().
+     * <p>
+     * The video size may change, so check getVideoWidth() / getVideoHeight() afterward.
+     */
+    public void setSourceFile(File sourceFile) throws IOException {
+        openSource(sourceFile);
+        if (mDecoder != null && !isSameFormat(mDecoderFormat, mTrackFormat)) {
+            Log.d(TAG, "format differs, dropping decoder");
+            releaseDecoder();
+        }
+    }
+
+    /**
+     * Sets the object that paces output.  Takes effect on the next play().
+     */
+    public void setFrameCallback(FrameCallback frameCallback) {
+        mFrameCallback = frameCallback;
+    }
+
+    /**
+     * Sets session mode.  If true, play() leaves the extractor and decoder set up for the
+     * next play(), and the caller must call release() when done.
+     */
+    public void setSessionMode(boolean sessionMode) {
+        mSessionMode = sessionMode;
+    }
+
+    /**
+     * Sets async mode.  If true, and the device supports it (API 23+), the next decoder is
+     * driven by MediaCodec.Callback rather than by polling.  Takes effect on the next play().
+     */
+    public void setAsyncMode(boolean asyncMode) {
+        mAsyncMode = asyncMode;
+    }
+
+    /**
+     * Sets scrub mode.  If true, playback stops at each frame reached by a seek (or at the
+     * first frame, if there was none) and waits for the next seek or a stop request.
+     * <p>
+     * May be called from any thread.
+     */
+    public void setScrubMode(boolean scrubMode) {
+        mScrubMode = scrubMode;
+    }
+
+    /**
+     * Sets the directory for sample index files (see SampleIndex).  If not set, they're kept
+     * next to the movie.
+     */
+    public void setIndexDirectory(File indexDir) {
+        mIndexDir = indexDir;
+    }
+
+    /**
+     * Asks the player to move to a new position.  Returns without waiting for the seek to
+     * happen.  A request made before play() sets the starting position.  If another request
+     * is still pending, it's replaced.
+     * <p>
+     * Called from arbitrary thread.
+     *
+     * @param timeUs Presentation time to seek to.
+     * @param mode SEEK_PREVIOUS_SYNC or SEEK_EXACT.
+     */
+    public void seekTo(long timeUs, int mode) {
+        if (mode != SEEK_PREVIOUS_SYNC && mode != SEEK_EXACT) {
+            throw new IllegalArgumentException("Unknown seek mode " + mode);
+        }
+        synchronized (mSeekLock) {
+            mPendingSeekUs = Math.max(timeUs, 0);
+            mPendingSeekMode = mode;
+            startIndexBuild();
+            mSeekLock.notifyAll();      // wake a scrub-mode hold
+        }
+        synchronized (mAsyncLock) {
+            mAsyncLock.notifyAll();     // wake doExtractAsync()
+        }
+    }
+
+    /**
+     * Releases the extractor and decoder.  The player can't be used after this.
+     */
+    public void release() {
+        releaseDecoder();
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+    }
+
+    /**
+     * Opens an extractor on the file, selects the video track, and replaces the current
+     * extractor with it.
+     */
+    private void openSource(File sourceFile) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
         try {
-            extractor = new MediaExtractor();
             extractor.setDataSource(sourceFile.toString());
             int trackIndex = selectTrack(extractor);
             if (trackIndex < 0) {
-                throw new RuntimeException("No video track found in " + mSourceFile);
+                throw new RuntimeException("No video track found in " + sourceFile);
             }
             extractor.selectTrack(trackIndex);
 
@@ -123,6 +289,20 @@ public class MoviePlayer {
             if (VERBOSE) {
                 Log.d(TAG, "Video size is " + mVideoWidth + "x" + mVideoHeight);
             }
+
+            if (mExtractor != null) {
+                mExtractor.release();
+            }
+            mExtractor = extractor;
+            extractor = null;
+            synchronized (mSeekLock) {
+                mSourceFile = sourceFile;
+                mSampleIndex = null;
+                mIndexError = null;
+            }
+            mTrackIndex = trackIndex;
+            mTrackFormat = format;
+            mRewindNeeded = mDecoder != null;   // new extractor is at the start
         } finally {
             if (extractor != null) {
                 extractor.release();
@@ -130,6 +310,39 @@ public class MoviePlayer {
         }
     }
 
+    /**
+     * Returns true if a decoder configured for one format can decode the other.  We require
+     * the codec-specific data to match, since the decoder only sees it at configure time.
+     */
+    private static boolean isSameFormat(MediaFormat a, MediaFormat b) {
+        if (!a.getString(MediaFormat.KEY_MIME).equals(b.getString(MediaFormat.KEY_MIME)) ||
+                a.getInteger(MediaFormat.KEY_WIDTH) != b.getInteger(MediaFormat.KEY_WIDTH) ||
+                a.getInteger(MediaFormat.KEY_HEIGHT) != b.getInteger(MediaFormat.KEY_HEIGHT)) {
+            return false;
+        }
+        for (String key : new String[] { "csd-0", "csd-1" }) {
+            ByteBuffer csdA = a.containsKey(key) ? a.getByteBuffer(key) : null;
+            ByteBuffer csdB = b.containsKey(key) ? b.getByteBuffer(key) : null;
+            if (csdA == null ? csdB != null : !csdA.equals(csdB)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void releaseDecoder() {
+        if (mDecoder != null) {
+            mDecoder.stop();
+            mDecoder.release();
+            mDecoder = null;
+            mDecoderFormat = null;
+        }
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+    }
+
     /**
      * Returns the width, in pixels, of the video.
      */
@@ -158,6 +371,12 @@ public class MoviePlayer {
      */
     public void requestStop() {
         mIsStopRequested = true;
+        synchronized (mSeekLock) {
+            mSeekLock.notifyAll();      // wake a scrub-mode hold
+        }
+        synchronized (mAsyncLock) {
+            mAsyncLock.notifyAll();     // wake doExtractAsync()
+        }
     }
 
     /**
@@ -167,45 +386,86 @@ public class MoviePlayer {
      * frameCallback.
      */
     public void play() throws IOException {
-        MediaExtractor extractor = null;
-        MediaCodec decoder = null;
-
         // The MediaExtractor error messages aren't very useful.  Check to see if the input
         // file exists so we can throw a better one if it's not there.
         if (!mSourceFile.canRead()) {
             throw new FileNotFoundException("Unable to read " + mSourceFile);
         }
+        if (mExtractor == null) {
+            // Released after an earlier play() (or by the caller).  Open it again.
+            openSource(mSourceFile);
+        }
 
+        long startNsec = System.nanoTime();
+        boolean async = mAsyncMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        boolean ok = false;
         try {
-            extractor = new MediaExtractor();
-            extractor.setDataSource(mSourceFile.toString());
-            int trackIndex = selectTrack(extractor);
-            if (trackIndex < 0) {
-                throw new RuntimeException("No video track found in " + mSourceFile);
+            if (mDecoder != null && mDecoderAsync != async) {
+                Log.d(TAG, "async mode changed, dropping decoder");
+                releaseDecoder();
             }
-            extractor.selectTrack(trackIndex);
-
-            MediaFormat format = extractor.getTrackFormat(trackIndex);
+            boolean reused = mDecoder != null;
+            boolean startNeeded = false;
+            if (mRewindNeeded) {
+                // Back to the start, and discard anything the decoder is holding.  A decoder
+                // in async mode has to be started again after a flush.
+                mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                if (mDecoder != null) {
+                    mDecoder.flush();
+                    startNeeded = mDecoderAsync;
+                }
+            }
+            if (mDecoder == null) {
+                // Create a MediaCodec decoder, and configure it with the MediaFormat from the
+                // extractor.  It's very important to use the format from the extractor
+                // because it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
+                String mime = mTrackFormat.getString(MediaFormat.KEY_MIME);
+                mDecoder = MediaCodec.createDecoderByType(mime);
+                if (async) {
+                    // The callback must be set before configure().
+                    mCallbackThread = new HandlerThread("MoviePlayer");
+                    mCallbackThread.start();
+                    mDecoder.setCallback(new DecoderCallback(),
+                            new Handler(mCallbackThread.getLooper()));
+                }
+                mDecoder.configure(mTrackFormat, mOutputSurface, null, 0);
+                mDecoderFormat = mTrackFormat;
+                mDecoderAsync = async;
+                startNeeded = true;
+            }
+            mRewindNeeded = true;
+            mSkipUntilUs = -1;
+            mHolding = false;
 
-            // Create a MediaCodec decoder, and configure it with the MediaFormat from the
-            // extractor.  It's very important to use the format from the extractor because
-            // it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, mOutputSurface, null, 0);
-            decoder.start();
+            // A seek requested before play() sets the starting position, so wait for the
+            // index it needs before we feed the decoder anything.  In scrub mode, seeks are
+            // on the way, so get the index started.
+            boolean seekPending;
+            synchronized (mSeekLock) {
+                seekPending = mPendingSeekUs >= 0;
+                if (mScrubMode) {
+                    startIndexBuild();
+                }
+            }
+            if (seekPending) {
+                waitForIndex();
+            }
 
-            doExtract(extractor, trackIndex, decoder, mFrameCallback);
-        } finally {
-            // release everything we grabbed
-            if (decoder != null) {
-                decoder.stop();
-                decoder.release();
-                decoder = null;
+            if (async) {
+                doExtractAsync(mDecoder, mFrameCallback, startNeeded, startNsec, reused);
+            } else {
+                if (startNeeded) {
+                    mDecoder.start();
+                }
+                doExtract(mExtractor, mTrackIndex, mDecoder, mFrameCallback, startNsec, reused);
             }
-            if (extractor != null) {
-                extractor.release();
-                extractor = null;
+            ok = true;
+        } finally {
+            mIsStopRequested = false;
+            if (!ok || !mSessionMode) {
+                // release everything we grabbed; after a failure, the decoder's state is
+                // unknown, so start over
+                release();
             }
         }
     }
@@ -215,7 +475,7 @@ public class MoviePlayer {
      *
      * @return the track index, or -1 if no video track is found.
      */
-    private static int selectTrack(MediaExtractor extractor) {
+    static int selectTrack(MediaExtractor extractor) {
         // Select the first video track we find, ignore the rest.
         int numTracks = extractor.getTrackCount();
         for (int i = 0; i < numTracks; i++) {
@@ -236,7 +496,7 @@ public class MoviePlayer {
      * Work loop.  We execute here until we run out of video or are told to stop.
      */
     private void doExtract(MediaExtractor extractor, int trackIndex, MediaCodec decoder,
-            FrameCallback frameCallback) {
+            FrameCallback frameCallback, long playStartNsec, boolean decoderReused) {
         // We need to strike a balance between providing input and reading output that
         // operates efficiently without delays on the output side.
         //
@@ -308,6 +568,17 @@ public class MoviePlayer {
                 Log.d(TAG, "Stop requested");
                 return;
             }
+            if (hasPendingSeek()) {
+                decoder.flush();
+                applyPendingSeek();
+                inputDone = false;
+                if (frameCallback != null) {
+                    frameCallback.loopReset();
+                }
+            } else if (mHolding) {
+                waitForSeek();
+                continue;
+            }
 
             // Feed more data to the decoder.
             if (!inputDone) {
@@ -367,6 +638,9 @@ public class MoviePlayer {
                         // of output.
                         long nowNsec = System.nanoTime();
                         Log.d(TAG, "startup lag " + ((nowNsec-firstInputTimeNsec) / 1000000.0) + " ms");
+                        Log.d(TAG, "time to first frame " +
+                                ((nowNsec - playStartNsec) / 1000000.0) + " ms" +
+                                (decoderReused ? " (decoder reused)" : ""));
                         firstInputTimeNsec = 0;
                     }
                     boolean doLoop = false;
@@ -374,26 +648,23 @@ public class MoviePlayer {
                             " (size=" + mBufferInfo.size + ")");
                     if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         if (VERBOSE) Log.d(TAG, "output EOS");
-                        if (mLoop) {
+                        if (mScrubMode) {
+                            // stay on the last frame until told to move
+                            mHolding = true;
+                        } else if (mLoop) {
                             doLoop = true;
                         } else {
                             outputDone = true;
                         }
                     }
 
-                    boolean doRender = (mBufferInfo.size != 0);
+                    boolean doRender = shouldRender(mBufferInfo);
 
                     // As soon as we call releaseOutputBuffer, the buffer will be forwarded
                     // to SurfaceTexture to convert to a texture.  We can't control when it
                     // appears on-screen, but we can manage the pace at which we release
-                    // the buffers.
-                    if (doRender && frameCallback != null) {
-                        frameCallback.preRender(mBufferInfo.presentationTimeUs);
-                    }
-                    decoder.releaseOutputBuffer(decoderStatus, doRender);
-                    if (doRender && frameCallback != null) {
-                        frameCallback.postRender();
-                    }
+                    // the buffers, or (on a SurfaceView) give it a display time.
+                    releaseFrame(decoder, decoderStatus, mBufferInfo, doRender, frameCallback);
 
                     if (doLoop) {
                         Log.d(TAG, "Reached EOS, looping");
@@ -407,6 +678,348 @@ public class MoviePlayer {
         }
     }
 
+    /**
+     * Releases a decoder output buffer, rendering it if doRender is set.  frameCallback paces
+     * the release, and may supply a display time for it.
+     */
+    private static void releaseFrame(MediaCodec decoder, int index, MediaCodec.BufferInfo info,
+            boolean doRender, FrameCallback frameCallback) {
+        if (!doRender || frameCallback == null) {
+            decoder.releaseOutputBuffer(index, doRender);
+            return;
+        }
+        frameCallback.preRender(info.presentationTimeUs);
+        long renderTimeNs = frameCallback.getRenderTimeNs();
+        if (renderTimeNs >= 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            decoder.releaseOutputBuffer(index, renderTimeNs);
+        } else {
+            decoder.releaseOutputBuffer(index, true);
+        }
+        frameCallback.postRender();
+    }
+
+    /**
+     * Work loop for async mode.  DecoderCallback feeds the decoder and queues its output;
+     * we release the output here, in order, pacing it with frameCallback.  We execute here
+     * until we run out of video or are told to stop.
+     */
+    private void doExtractAsync(MediaCodec decoder, FrameCallback frameCallback,
+            boolean startDecoder, long playStartNsec, boolean decoderReused) {
+        // Input buffers offered before this are lost, so we have to be active before start().
+        synchronized (mAsyncLock) {
+            mPendingOutput.clear();
+            mAsyncInputDone = false;
+            mAsyncError = null;
+            mAsyncActive = true;
+        }
+        try {
+            if (startDecoder) {
+                decoder.start();
+            }
+            boolean firstFrame = true;
+            while (true) {
+                PendingOutput output;
+                synchronized (mAsyncLock) {
+                    while ((mPendingOutput.isEmpty() || mHolding) && mAsyncError == null &&
+                            !mIsStopRequested && !hasPendingSeek()) {
+                        try {
+                            mAsyncLock.wait();
+                        } catch (InterruptedException ie) {
+                            // treat it like a stop request
+                            Log.w(TAG, "decode wait was interrupted");
+                            return;
+                        }
+                    }
+                    if (mIsStopRequested) {
+                        Log.d(TAG, "Stop requested");
+                        return;
+                    }
+                    if (mAsyncError != null) {
+                        throw new RuntimeException("decoder failed", mAsyncError);
+                    }
+                    output = hasPendingSeek() ? null : mPendingOutput.removeFirst();
+                }
+                if (output == null) {
+                    restartAsync(decoder, true);
+                    if (frameCallback != null) {
+                        frameCallback.loopReset();
+                    }
+                    continue;
+                }
+
+                MediaCodec.BufferInfo info = output.info;
+                if (firstFrame) {
+                    Log.d(TAG, "time to first frame " +
+                            ((System.nanoTime() - playStartNsec) / 1000000.0) + " ms" +
+                            (decoderReused ? " (decoder reused)" : ""));
+                    firstFrame = false;
+                }
+                if (VERBOSE) Log.d(TAG, "surface decoder given buffer " + output.index +
+                        " (size=" + info.size + ")");
+
+                boolean doRender = shouldRender(info);
+                releaseFrame(decoder, output.index, info, doRender, frameCallback);
+
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    if (VERBOSE) Log.d(TAG, "output EOS");
+                    if (mScrubMode) {
+                        // stay on the last frame until told to move
+                        mHolding = true;
+                        continue;
+                    }
+                    if (!mLoop) {
+                        return;
+                    }
+                    Log.d(TAG, "Reached EOS, looping");
+                    restartAsync(decoder, false);
+                    if (frameCallback != null) {
+                        frameCallback.loopReset();
+                    }
+                }
+            }
+        } finally {
+            // Stop feeding the decoder.  Anything it's holding is discarded by the next flush.
+            synchronized (mAsyncLock) {
+                mAsyncActive = false;
+                mPendingOutput.clear();
+            }
+        }
+    }
+
+    /**
+     * Flushes an async-mode decoder, moves the extractor, and starts the decoder again.
+     *
+     * @param seek If set, go to the pending seek position; otherwise go to the start.
+     */
+    private void restartAsync(MediaCodec decoder, boolean seek) {
+        synchronized (mAsyncLock) {
+            mAsyncActive = false;
+            mPendingOutput.clear();
+        }
+        decoder.flush();    // reset decoder state
+        synchronized (mAsyncLock) {
+            if (seek) {
+                applyPendingSeek();
+            } else {
+                mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            }
+            mAsyncInputDone = false;
+            mAsyncActive = true;
+        }
+        decoder.start();
+    }
+
+    /**
+     * Returns true if there's a seek request we can act on now, i.e. the index is ready (or
+     * failed, which applyPendingSeek() will report).
+     */
+    private boolean hasPendingSeek() {
+        synchronized (mSeekLock) {
+            return mPendingSeekUs >= 0 && (mSampleIndex != null || mIndexError != null);
+        }
+    }
+
+    /**
+     * Starts building the sample index on a background thread, unless it's built, being
+     * built, or has failed.  Call with mSeekLock held.
+     * <p>
+     * When the thread is done, it wakes anything waiting for a seek.
+     */
+    private void startIndexBuild() {
+        if (mSampleIndex != null || mIndexBuilding || mIndexError != null) {
+            return;
+        }
+        mIndexBuilding = true;
+        final File sourceFile = mSourceFile;
+        final File indexDir = mIndexDir;
+        new Thread("SampleIndex") {
+            @Override
+            public void run() {
+                SampleIndex index = null;
+                IOException error = null;
+                try {
+                    index = SampleIndex.open(sourceFile, indexDir);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "unable to index " + sourceFile, ioe);
+                    error = ioe;
+                }
+                synchronized (mSeekLock) {
+                    mIndexBuilding = false;
+                    if (sourceFile.equals(mSourceFile)) {
+                        mSampleIndex = index;
+                        mIndexError = error;
+                    } else if (mPendingSeekUs >= 0) {
+                        // The source changed while we were working; index the new one.
+                        startIndexBuild();
+                    }
+                    mSeekLock.notifyAll();
+                }
+                synchronized (mAsyncLock) {
+                    mAsyncLock.notifyAll();     // wake doExtractAsync()
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Waits for the sample index to be ready, starting the build if needed.  Returns early
+     * if a stop is requested.
+     */
+    private void waitForIndex() {
+        synchronized (mSeekLock) {
+            while (mSampleIndex == null && mIndexError == null && !mIsStopRequested) {
+                startIndexBuild();
+                try {
+                    mSeekLock.wait();
+                } catch (InterruptedException ie) {
+                    // treat it like a stop request
+                    Log.w(TAG, "index wait was interrupted");
+                    mIsStopRequested = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the pending seek request, and positions the extractor on the sync frame at or
+     * before it.  For an exact seek, the frames between there and the target are decoded
+     * but not rendered.  The decoder must be flushed first.
+     * <p>
+     * Only call when hasPendingSeek() says the index is ready.  This doesn't do any I/O, so
+     * it's fine to call with mAsyncLock held.
+     */
+    private void applyPendingSeek() {
+        long targetUs;
+        int mode;
+        SampleIndex index;
+        synchronized (mSeekLock) {
+            if (mIndexError != null) {
+                throw new RuntimeException(mIndexError);
+            }
+            targetUs = mPendingSeekUs;
+            mode = mPendingSeekMode;
+            mPendingSeekUs = -1;
+            index = mSampleIndex;
+        }
+
+        // Past the end, show the last frame.
+        targetUs = Math.min(targetUs, index.getLastSampleTimeUs());
+        long syncUs = index.getSyncTimeBefore(targetUs);
+        if (VERBOSE) Log.d(TAG, "seek to " + targetUs + " (mode " + mode + "), sync " + syncUs);
+
+        // We know syncUs is a sync sample, so this lands exactly on it.
+        mExtractor.seekTo(syncUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        mSkipUntilUs = (mode == SEEK_EXACT) ? targetUs : -1;
+        mHolding = false;
+    }
+
+    /**
+     * Returns true if a decoded frame should be rendered.  Frames short of an exact seek's
+     * target aren't.  In scrub mode, rendering a frame starts a hold.
+     */
+    private boolean shouldRender(MediaCodec.BufferInfo info) {
+        if (info.size == 0 || info.presentationTimeUs < mSkipUntilUs) {
+            return false;
+        }
+        mSkipUntilUs = -1;
+        if (mScrubMode) {
+            mHolding = true;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a seek or stop request.  Used while holding in scrub mode.
+     */
+    private void waitForSeek() {
+        synchronized (mSeekLock) {
+            while (!hasPendingSeek() && !mIsStopRequested) {
+                try {
+                    mSeekLock.wait();
+                } catch (InterruptedException ie) {
+                    // treat it like a stop request
+                    Log.w(TAG, "seek wait was interrupted");
+                    mIsStopRequested = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * A decoded frame waiting to be released by doExtractAsync().
+     */
+    private static class PendingOutput {
+        final int index;
+        final MediaCodec.BufferInfo info;
+
+        PendingOutput(int index, MediaCodec.BufferInfo info) {
+            this.index = index;
+            this.info = info;
+        }
+    }
+
+    /**
+     * Handles decoder events in async mode.  Runs on mCallbackThread.
+     */
+    private class DecoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (mAsyncLock) {
+                if (!mAsyncActive || mAsyncInputDone) {
+                    // Hang on to it; the next flush() gives it back.
+                    return;
+                }
+                ByteBuffer inputBuf = codec.getInputBuffer(index);
+                int chunkSize = mExtractor.readSampleData(inputBuf, 0);
+                if (chunkSize < 0) {
+                    // End of stream -- send empty frame with EOS flag set.
+                    codec.queueInputBuffer(index, 0, 0, 0L,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mAsyncInputDone = true;
+                    if (VERBOSE) Log.d(TAG, "sent input EOS");
+                } else {
+                    if (mExtractor.getSampleTrackIndex() != mTrackIndex) {
+                        Log.w(TAG, "WEIRD: got sample from track " +
+                                mExtractor.getSampleTrackIndex() + ", expected " + mTrackIndex);
+                    }
+                    codec.queueInputBuffer(index, 0, chunkSize, mExtractor.getSampleTime(),
+                            0 /*flags*/);
+                    if (VERBOSE) Log.d(TAG, "submitted input buffer, size=" + chunkSize);
+                    mExtractor.advance();
+                }
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            // The BufferInfo may be reused by the codec, so take a copy.
+            MediaCodec.BufferInfo copy = new MediaCodec.BufferInfo();
+            copy.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+            synchronized (mAsyncLock) {
+                if (!mAsyncActive) {
+                    return;
+                }
+                mPendingOutput.addLast(new PendingOutput(index, copy));
+                mAsyncLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "decoder output format changed: " + format);
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "decoder error", e);
+            synchronized (mAsyncLock) {
+                mAsyncError = e;
+                mAsyncLock.notifyAll();
+            }
+        }
+    }
+
     /**
      * Thread helper for video playback.
      * <p>
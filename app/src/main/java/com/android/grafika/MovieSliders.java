@@ -28,11 +28,20 @@ import java.io.IOException;
 public class MovieSliders extends GeneratedMovie {
     private static final String TAG = MainActivity.TAG;
 
+    private static final int VERSION = 1;       // bump when generateFrame() changes
+
     private static final String MIME_TYPE = "video/avc";
     private static final int WIDTH = 480;       // note 480x640, not 640x480
     private static final int HEIGHT = 640;
     private static final int BIT_RATE = 5000000;
     private static final int FRAMES_PER_SECOND = 30;
+    private static final int NUM_FRAMES = 240;
+
+    @Override
+    public String getParameters() {
+        return formatParameters("MovieSliders", VERSION, MIME_TYPE, WIDTH, HEIGHT, BIT_RATE,
+                FRAMES_PER_SECOND, NUM_FRAMES);
+    }
 
     @Override
     public void create(File outputFile, ContentManager.ProgressUpdater prog) {
@@ -40,8 +49,6 @@ public class MovieSliders extends GeneratedMovie {
             throw new RuntimeException("Already created");
         }
 
-        final int NUM_FRAMES = 240;
-
         try {
             prepareEncoder(MIME_TYPE, WIDTH, HEIGHT, BIT_RATE, FRAMES_PER_SECOND, outputFile);
 
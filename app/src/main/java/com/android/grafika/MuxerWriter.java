@@ -0,0 +1,368 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds a MediaMuxer from a background thread.
+ * <p>
+ * MediaMuxer.writeSampleData() does file I/O, and if it's called on the thread that drains
+ * the codec, slow storage stalls codec output, which eventually backs up into whatever is
+ * rendering frames.  Instead, writeSampleData() here copies the packet into a pooled direct
+ * buffer and queues it, so the caller can release the codec's buffer right away.  A writer
+ * thread hands the queued packets to the muxer.
+ * <p>
+ * The queue is bounded.  When it's full, the overflow policy decides what happens:
+ * OVERFLOW_BLOCK waits for the writer to catch up, OVERFLOW_DROP_NON_REFERENCE drops
+ * H.264 frames that nothing else refers to (see {@link AvcNalParser#isDisposable}) and waits
+ * for anything else.
+ * <p>
+ * The queue slots and their buffers are reused, so once the buffers have grown to fit the
+ * largest packet, queueing a packet doesn't allocate.
+ * <p>
+ * Call addTrack() and start() from the producer side, then writeSampleData() from any
+ * thread, then stop() and release().
+ */
+public class MuxerWriter implements SampleSink {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** When the queue is full, wait for room. */
+    public static final int OVERFLOW_BLOCK = 0;
+    /** When the queue is full, drop non-reference video frames, and wait for anything else. */
+    public static final int OVERFLOW_DROP_NON_REFERENCE = 1;
+
+    /** About a second of 30fps video. */
+    public static final int DEFAULT_QUEUE_SIZE = 30;
+
+    private static final String AVC_MIME_TYPE = "video/avc";
+    private static final int MAX_TRACKS = 8;
+
+    /**
+     * A queue slot.  Owned by the producer until it's queued, then by the writer thread
+     * until it's written.
+     */
+    private static class Packet {
+        ByteBuffer data;
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int trackIndex;
+        long queuedNsec;
+    }
+
+    private final MediaMuxer mMuxer;
+    private final int mOverflowPolicy;
+    private final boolean[] mTrackIsAvc = new boolean[MAX_TRACKS];
+    private Thread mWriterThread;
+
+    // Everything below is guarded by mLock.  Packets are queued at mQueueHead + mQueueCount
+    // and written from mQueueHead.
+    private final Object mLock = new Object();
+    private final Packet[] mQueue;
+    private int mQueueHead;
+    private int mQueueCount;
+    private boolean mStopping;
+    private RuntimeException mWriterError;
+
+    // Statistics, also guarded by mLock.
+    private int mMaxQueueDepth;
+    private int mWrittenCount;
+    private int mDroppedCount;
+    private int mBlockedCount;
+    private long mTotalWriteNsec;
+    private long mMaxWriteNsec;
+    private long mMaxLatencyNsec;
+
+    /**
+     * Wraps the muxer, with a queue of DEFAULT_QUEUE_SIZE packets that blocks when full.
+     */
+    public MuxerWriter(MediaMuxer muxer) {
+        this(muxer, DEFAULT_QUEUE_SIZE, OVERFLOW_BLOCK);
+    }
+
+    /**
+     * Wraps the muxer.
+     *
+     * @param queueSize Maximum number of packets waiting to be written.
+     * @param overflowPolicy OVERFLOW_BLOCK or OVERFLOW_DROP_NON_REFERENCE.
+     */
+    public MuxerWriter(MediaMuxer muxer, int queueSize, int overflowPolicy) {
+        if (queueSize <= 0) {
+            throw new RuntimeException("invalid queue size " + queueSize);
+        }
+        mMuxer = muxer;
+        mOverflowPolicy = overflowPolicy;
+        mQueue = new Packet[queueSize];
+        for (int i = 0; i < queueSize; i++) {
+            mQueue[i] = new Packet();
+        }
+    }
+
+    /**
+     * Adds a track to the muxer.  Must be called before start().
+     */
+    @Override
+    public int addTrack(MediaFormat format) {
+        int trackIndex = mMuxer.addTrack(format);
+        if (trackIndex < MAX_TRACKS) {
+            mTrackIsAvc[trackIndex] = AVC_MIME_TYPE.equals(format.getString(MediaFormat.KEY_MIME));
+        }
+        return trackIndex;
+    }
+
+    /**
+     * Starts the muxer and the writer thread.
+     */
+    @Override
+    public void start() {
+        mMuxer.start();
+        mWriterThread = new Thread("MuxerWriter") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        mWriterThread.start();
+    }
+
+    /**
+     * Queues a packet for the muxer.  The data is copied, so the caller can release the
+     * buffer as soon as this returns.  The buffer's position and limit may be altered.
+     *
+     * @return False if the packet was dropped because the queue was full.
+     */
+    @Override
+    public boolean writeSampleData(int trackIndex, ByteBuffer buf, MediaCodec.BufferInfo info) {
+        synchronized (mLock) {
+            checkWriterError();
+            if (mWriterThread == null || mStopping) {
+                throw new RuntimeException("writer not running");
+            }
+            if (mQueueCount == mQueue.length) {
+                if (mOverflowPolicy == OVERFLOW_DROP_NON_REFERENCE &&
+                        trackIndex < MAX_TRACKS && mTrackIsAvc[trackIndex] &&
+                        AvcNalParser.isDisposable(buf, info.offset, info.size)) {
+                    if (VERBOSE) Log.d(TAG, "queue full, dropping pts=" + info.presentationTimeUs);
+                    mDroppedCount++;
+                    return false;
+                }
+                mBlockedCount++;
+                while (mQueueCount == mQueue.length && mWriterError == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) { /* not expected */ }
+                }
+                checkWriterError();
+            }
+
+            Packet pkt = mQueue[(mQueueHead + mQueueCount) % mQueue.length];
+            if (pkt.data == null || pkt.data.capacity() < info.size) {
+                // Round up to a multiple of 64KB so a slowly-growing packet size doesn't
+                // cause a series of reallocations.
+                pkt.data = ByteBuffer.allocateDirect((info.size + 0xffff) & ~0xffff);
+            }
+            buf.limit(info.offset + info.size);
+            buf.position(info.offset);
+            pkt.data.clear();
+            pkt.data.put(buf);
+            pkt.data.flip();
+            pkt.info.set(0, info.size, info.presentationTimeUs, info.flags);
+            pkt.trackIndex = trackIndex;
+            pkt.queuedNsec = System.nanoTime();
+
+            mQueueCount++;
+            if (mQueueCount > mMaxQueueDepth) {
+                mMaxQueueDepth = mQueueCount;
+            }
+            mLock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the queued packets to be written, then stops the writer thread and the
+     * muxer.  If the writer thread failed, its exception is rethrown here.
+     */
+    @Override
+    public void stop() {
+        synchronized (mLock) {
+            mStopping = true;
+            mLock.notifyAll();
+        }
+        if (mWriterThread != null) {
+            try {
+                mWriterThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "writer thread join() was interrupted", ie);
+            }
+            mWriterThread = null;
+            Log.d(TAG, "muxer writer stats: " + this);
+        }
+        synchronized (mLock) {
+            checkWriterError();
+        }
+        mMuxer.stop();
+    }
+
+    /**
+     * Releases the muxer.
+     */
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+
+    /**
+     * Returns the number of packets waiting to be written.
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueueCount;
+        }
+    }
+
+    /**
+     * Returns the largest number of packets that have been waiting at once.
+     */
+    public int getMaxQueueDepth() {
+        synchronized (mLock) {
+            return mMaxQueueDepth;
+        }
+    }
+
+    /**
+     * Returns the number of packets dropped because the queue was full.
+     */
+    public int getDroppedCount() {
+        synchronized (mLock) {
+            return mDroppedCount;
+        }
+    }
+
+    /**
+     * Returns the number of times writeSampleData() had to wait for room in the queue.
+     */
+    public int getBlockedCount() {
+        synchronized (mLock) {
+            return mBlockedCount;
+        }
+    }
+
+    /**
+     * Returns the average time spent in MediaMuxer.writeSampleData(), in microseconds.
+     */
+    public long getAverageWriteUsec() {
+        synchronized (mLock) {
+            return mWrittenCount == 0 ? 0 : mTotalWriteNsec / mWrittenCount / 1000;
+        }
+    }
+
+    /**
+     * Returns the longest time spent in MediaMuxer.writeSampleData(), in microseconds.
+     */
+    public long getMaxWriteUsec() {
+        synchronized (mLock) {
+            return mMaxWriteNsec / 1000;
+        }
+    }
+
+    /**
+     * Returns the longest time from a packet being queued to it being written, in
+     * microseconds.
+     */
+    public long getMaxLatencyUsec() {
+        synchronized (mLock) {
+            return mMaxLatencyNsec / 1000;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "written=" + mWrittenCount + " dropped=" + mDroppedCount +
+                    " blocked=" + mBlockedCount + " maxDepth=" + mMaxQueueDepth + "/" +
+                    mQueue.length + " avgWrite=" + getAverageWriteUsec() + "us maxWrite=" +
+                    getMaxWriteUsec() + "us maxLatency=" + getMaxLatencyUsec() + "us";
+        }
+    }
+
+    /**
+     * Throws the writer thread's exception, if it had one.  Call with mLock held.
+     */
+    private void checkWriterError() {
+        if (mWriterError != null) {
+            throw new RuntimeException("muxer writer failed", mWriterError);
+        }
+    }
+
+    /**
+     * Writer thread main loop.  Writes packets until stop() is called and the queue is empty.
+     */
+    private void writeLoop() {
+        final int queueLen = mQueue.length;
+        while (true) {
+            Packet pkt;
+            synchronized (mLock) {
+                while (mQueueCount == 0 && !mStopping) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) { /* not expected */ }
+                }
+                if (mQueueCount == 0) {
+                    break;      // stopping, and everything has been written
+                }
+                pkt = mQueue[mQueueHead];
+            }
+
+            // The slot stays in the queue while we write it, so the producer won't reuse it.
+            long startNsec = System.nanoTime();
+            try {
+                mMuxer.writeSampleData(pkt.trackIndex, pkt.data, pkt.info);
+            } catch (RuntimeException re) {
+                Log.e(TAG, "writeSampleData failed", re);
+                synchronized (mLock) {
+                    mWriterError = re;
+                    mLock.notifyAll();
+                }
+                return;
+            }
+            long endNsec = System.nanoTime();
+            if (VERBOSE) Log.d(TAG, "wrote " + pkt.info.size + " bytes, track=" + pkt.trackIndex);
+
+            synchronized (mLock) {
+                long writeNsec = endNsec - startNsec;
+                long latencyNsec = endNsec - pkt.queuedNsec;
+                mTotalWriteNsec += writeNsec;
+                if (writeNsec > mMaxWriteNsec) {
+                    mMaxWriteNsec = writeNsec;
+                }
+                if (latencyNsec > mMaxLatencyNsec) {
+                    mMaxLatencyNsec = latencyNsec;
+                }
+                mWrittenCount++;
+                mQueueHead = (mQueueHead + 1) % queueLen;
+                mQueueCount--;
+                mLock.notifyAll();
+            }
+        }
+    }
+}
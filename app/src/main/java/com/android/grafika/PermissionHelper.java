@@ -41,6 +41,10 @@ class PermissionHelper {
     return ContextCompat.checkSelfPermission(activity,
             Manifest.permission.WRITE_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED;
   }
+  public static boolean hasRecordAudioPermission(Activity activity) {
+    return ContextCompat.checkSelfPermission(activity,
+            Manifest.permission.RECORD_AUDIO) == PackageManager.PERMISSION_GRANTED;
+  }
   public static void requestCameraPermission(Activity activity, boolean requestWritePermission) {
 
     boolean showRationale = ActivityCompat.shouldShowRequestPermissionRationale(activity,
@@ -77,6 +81,11 @@ class PermissionHelper {
     }
   }
 
+  public static void requestRecordAudioPermission(Activity activity) {
+    String permissions[] =  new String[]{ Manifest.permission.RECORD_AUDIO};
+    ActivityCompat.requestPermissions(activity,permissions,RC_PERMISSION_REQUEST);
+  }
+
   /** Launch Application Setting to grant permission. */
   public static void launchPermissionSettings(Activity activity) {
     Intent intent = new Intent();
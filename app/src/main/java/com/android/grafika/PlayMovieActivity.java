@@ -55,6 +55,11 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
     private int mSelectedMovie;
     private boolean mShowStopLabel;
     private MoviePlayer.PlayTask mPlayTask;
+
+    // The player and its Surface are kept between plays, so replays (and switches to a movie
+    // with the same format) don't have to set up a new decoder.
+    private MoviePlayer mPlayer;
+    private Surface mPlayerSurface;
     private boolean mSurfaceTextureReady = false;
 
     private final Object mStopper = new Object();   // used to signal stop
@@ -102,6 +107,7 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
             stopPlayback();
             mPlayTask.waitForStop();
         }
+        releasePlayer();
     }
 
     @Override
@@ -123,6 +129,10 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
     @Override
     public boolean onSurfaceTextureDestroyed(SurfaceTexture st) {
         mSurfaceTextureReady = false;
+        if (mPlayTask == null) {
+            // the player's Surface is going away with the SurfaceTexture
+            releasePlayer();
+        }
         // assume activity is pausing, so don't need to update controls
         return true;    // caller should release ST
     }
@@ -167,20 +177,26 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
                 // TODO: consider changing this to be "free running" mode
                 callback.setFixedPlaybackRate(60);
             }
-            SurfaceTexture st = mTextureView.getSurfaceTexture();
-            Surface surface = new Surface(st);
-            MoviePlayer player = null;
+            File movieFile = new File(getFilesDir(), mMovieFiles[mSelectedMovie]);
             try {
-                 player = new MoviePlayer(
-                        new File(getFilesDir(), mMovieFiles[mSelectedMovie]), surface, callback);
+                if (mPlayer == null) {
+                    SurfaceTexture st = mTextureView.getSurfaceTexture();
+                    mPlayerSurface = new Surface(st);
+                    mPlayer = new MoviePlayer(movieFile, mPlayerSurface, callback);
+                    mPlayer.setSessionMode(true);
+                    mPlayer.setIndexDirectory(getCacheDir());
+                } else {
+                    mPlayer.setSourceFile(movieFile);
+                    mPlayer.setFrameCallback(callback);
+                }
             } catch (IOException ioe) {
                 Log.e(TAG, "Unable to play movie", ioe);
-                surface.release();
+                releasePlayer();
                 return;
             }
-            adjustAspectRatio(player.getVideoWidth(), player.getVideoHeight());
+            adjustAspectRatio(mPlayer.getVideoWidth(), mPlayer.getVideoHeight());
 
-            mPlayTask = new MoviePlayer.PlayTask(player, this);
+            mPlayTask = new MoviePlayer.PlayTask(mPlayer, this);
             if (((CheckBox) findViewById(R.id.loopPlayback_checkbox)).isChecked()) {
                 mPlayTask.setLoopMode(true);
             }
@@ -200,6 +216,20 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
         }
     }
 
+    /**
+     * Releases the player and its Surface.  Must not be called while a movie is playing.
+     */
+    private void releasePlayer() {
+        if (mPlayer != null) {
+            mPlayer.release();
+            mPlayer = null;
+        }
+        if (mPlayerSurface != null) {
+            mPlayerSurface.release();
+            mPlayerSurface = null;
+        }
+    }
+
     @Override   // MoviePlayer.PlayerFeedback
     public void playbackStopped() {
         Log.d(TAG, "playback stopped");
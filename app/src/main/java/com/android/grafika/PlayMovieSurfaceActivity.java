@@ -188,6 +188,8 @@ public class PlayMovieSurfaceActivity extends Activity implements OnItemSelected
 
             Log.d(TAG, "starting movie");
             SpeedControlCallback callback = new SpeedControlCallback();
+            // SurfaceView output goes straight to SurfaceFlinger, which honors display times.
+            callback.setScheduledRelease(true);
             SurfaceHolder holder = mSurfaceView.getHolder();
             Surface surface = holder.getSurface();
 
@@ -808,7 +808,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             VideoEncoderCore encoderCore;
             try {
                 encoderCore = new VideoEncoderCore(VIDEO_WIDTH, VIDEO_HEIGHT,
-                        BIT_RATE, mOutputFile);
+                        BIT_RATE, mOutputFile, true);
             } catch (IOException ioe) {
                 throw new RuntimeException(ioe);
             }
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Sample table for a movie's video track: the presentation time, size, and sync flag of
+ * every sample.
+ * <p>
+ * Building one takes a pass over the sample table with MediaExtractor, which is slow for
+ * long movies, so {@link #open(File, File)} saves the index to a file and memory-maps it
+ * the next time.  The file is rebuilt if the movie's size or modification time changes.
+ * <p>
+ * The index file holds a header, then the sample times (long[], decode order), the sample
+ * sizes (int[]), and the sample numbers of the sync samples (int[], in presentation order).
+ * <p>
+ * Once built, finding the sync frame that a seek must decode from is a binary search.
+ */
+public class SampleIndex {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int MAGIC = 0x47494458;        // "GIDX"
+    private static final int FORMAT_VERSION = 1;
+    // magic, version, sample count, sync count; source length, source mtime, last PTS
+    private static final int HEADER_SIZE = 4 * 4 + 3 * 8;
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final LongBuffer mSampleTimesUs;
+    private final IntBuffer mSampleSizes;
+    private final IntBuffer mSyncSamples;
+    private final long mLastSampleTimeUs;
+
+    private SampleIndex(LongBuffer sampleTimesUs, IntBuffer sampleSizes, IntBuffer syncSamples,
+            long lastSampleTimeUs) {
+        mSampleTimesUs = sampleTimesUs;
+        mSampleSizes = sampleSizes;
+        mSyncSamples = syncSamples;
+        mLastSampleTimeUs = lastSampleTimeUs;
+    }
+
+    /**
+     * Returns the index for the movie, from its index file if that's up to date.  Otherwise
+     * the movie is scanned, and the index file written for next time.
+     *
+     * @param indexDir Where to keep the index file.  If null, it goes next to the movie.
+     */
+    public static SampleIndex open(File sourceFile, File indexDir) throws IOException {
+        File indexFile = (indexDir == null) ?
+                new File(sourceFile.getPath() + INDEX_SUFFIX) :
+                new File(indexDir, sourceFile.getName() + INDEX_SUFFIX);
+        SampleIndex index = map(indexFile, sourceFile);
+        if (index != null) {
+            return index;
+        }
+
+        index = build(sourceFile);
+        try {
+            index.write(indexFile, sourceFile);
+        } catch (IOException ioe) {
+            // We've got the index; we'll just have to scan again next time.
+            Log.w(TAG, "unable to write " + indexFile, ioe);
+            return index;
+        }
+        // Switch to the mapped copy, so the heap copy can be collected.
+        SampleIndex mapped = map(indexFile, sourceFile);
+        return (mapped != null) ? mapped : index;
+    }
+
+    /**
+     * Scans the video track of the file.
+     */
+    public static SampleIndex build(File sourceFile) throws IOException {
+        long startWhen = System.nanoTime();
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(sourceFile.toString());
+            int trackIndex = MoviePlayer.selectTrack(extractor);
+            if (trackIndex < 0) {
+                throw new RuntimeException("No video track found in " + sourceFile);
+            }
+            extractor.selectTrack(trackIndex);
+
+            // Before API 28 there's no getSampleSize(), so we have to read the samples.
+            ByteBuffer sampleBuf = null;
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+                MediaFormat format = extractor.getTrackFormat(trackIndex);
+                int maxSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ?
+                        format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) :
+                        format.getInteger(MediaFormat.KEY_WIDTH) *
+                                format.getInteger(MediaFormat.KEY_HEIGHT);
+                sampleBuf = ByteBuffer.allocateDirect(maxSize);
+            }
+
+            long[] times = new long[1024];
+            int[] sizes = new int[1024];
+            int[] syncs = new int[64];
+            int sampleCount = 0;
+            int syncCount = 0;
+            long lastTimeUs = 0;
+            while (true) {
+                long timeUs = extractor.getSampleTime();
+                if (timeUs < 0) {
+                    break;
+                }
+                if (sampleCount == times.length) {
+                    times = Arrays.copyOf(times, sampleCount * 2);
+                    sizes = Arrays.copyOf(sizes, sampleCount * 2);
+                }
+                times[sampleCount] = timeUs;
+                sizes[sampleCount] = (sampleBuf == null) ?
+                        (int) extractor.getSampleSize() : extractor.readSampleData(sampleBuf, 0);
+                if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                    if (syncCount == syncs.length) {
+                        syncs = Arrays.copyOf(syncs, syncCount * 2);
+                    }
+                    syncs[syncCount++] = sampleCount;
+                }
+                // With B-frames, samples are in decode order, so the last isn't necessarily
+                // the latest.
+                lastTimeUs = Math.max(lastTimeUs, timeUs);
+                sampleCount++;
+                extractor.advance();
+            }
+            if (syncCount == 0) {
+                throw new RuntimeException("No sync samples found in " + sourceFile);
+            }
+
+            // Sync samples should already be in presentation order, but make sure, since the
+            // binary search depends on it.  (Insertion sort; nearly free if they are.)
+            for (int i = 1; i < syncCount; i++) {
+                int sample = syncs[i];
+                int j = i - 1;
+                while (j >= 0 && times[syncs[j]] > times[sample]) {
+                    syncs[j + 1] = syncs[j];
+                    j--;
+                }
+                syncs[j + 1] = sample;
+            }
+
+            Log.d(TAG, "indexed " + sourceFile.getName() + ": " + sampleCount + " samples, " +
+                    syncCount + " sync, in " + (System.nanoTime() - startWhen) / 1000000 + " ms");
+            return new SampleIndex(LongBuffer.wrap(times, 0, sampleCount).slice(),
+                    IntBuffer.wrap(sizes, 0, sampleCount).slice(),
+                    IntBuffer.wrap(syncs, 0, syncCount).slice(), lastTimeUs);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Maps an index file.  Returns null if it's missing, damaged, or out of date.
+     */
+    private static SampleIndex map(File indexFile, File sourceFile) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(indexFile, "r");
+            FileChannel channel = raf.getChannel();
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                Log.w(TAG, indexFile + ": truncated");
+                return null;
+            }
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            int magic = buf.getInt();
+            int version = buf.getInt();
+            int sampleCount = buf.getInt();
+            int syncCount = buf.getInt();
+            long sourceLength = buf.getLong();
+            long sourceModified = buf.getLong();
+            long lastSampleTimeUs = buf.getLong();
+            if (magic != MAGIC || version != FORMAT_VERSION) {
+                Log.w(TAG, indexFile + ": unknown format");
+                return null;
+            }
+            if (sourceLength != sourceFile.length() ||
+                    sourceModified != sourceFile.lastModified()) {
+                Log.d(TAG, indexFile + ": movie has changed");
+                return null;
+            }
+            if (sampleCount < 0 || syncCount <= 0 || fileSize !=
+                    HEADER_SIZE + sampleCount * 12L + syncCount * 4L) {
+                Log.w(TAG, indexFile + ": bad size");
+                return null;
+            }
+
+            LongBuffer times = slice(buf, HEADER_SIZE, sampleCount * 8).asLongBuffer();
+            int offset = HEADER_SIZE + sampleCount * 8;
+            IntBuffer sizes = slice(buf, offset, sampleCount * 4).asIntBuffer();
+            offset += sampleCount * 4;
+            IntBuffer syncs = slice(buf, offset, syncCount * 4).asIntBuffer();
+            if (VERBOSE) Log.d(TAG, "mapped " + indexFile + ": " + sampleCount + " samples");
+            return new SampleIndex(times, sizes, syncs, lastSampleTimeUs);
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to map " + indexFile, ioe);
+            return null;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int offset, int length) {
+        ByteBuffer dup = buf.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice();
+    }
+
+    /**
+     * Writes the index to a file, via a temporary file and a rename so a reader never sees a
+     * partial one.
+     */
+    private void write(File indexFile, File sourceFile) throws IOException {
+        int sampleCount = getSampleCount();
+        int syncCount = getSyncSampleCount();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + sampleCount * 12 + syncCount * 4);
+        buf.putInt(MAGIC);
+        buf.putInt(FORMAT_VERSION);
+        buf.putInt(sampleCount);
+        buf.putInt(syncCount);
+        buf.putLong(sourceFile.length());
+        buf.putLong(sourceFile.lastModified());
+        buf.putLong(mLastSampleTimeUs);
+        buf.asLongBuffer().put(mSampleTimesUs.duplicate());
+        buf.position(buf.position() + sampleCount * 8);
+        buf.asIntBuffer().put(mSampleSizes.duplicate());
+        buf.position(buf.position() + sampleCount * 4);
+        buf.asIntBuffer().put(mSyncSamples.duplicate());
+        buf.rewind();
+
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } finally {
+            closeQuietly(out);
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            tmpFile.delete();
+            throw new IOException("unable to rename " + tmpFile + " to " + indexFile);
+        }
+    }
+
+    /**
+     * Returns the sample number of the latest sync sample at or before timeUs.  Decoding from
+     * there reaches the frame at timeUs.  If timeUs precedes the first sync sample, returns
+     * that.
+     */
+    public int getSyncSampleBefore(long timeUs) {
+        // Find the last sync sample whose time is <= timeUs.
+        int lo = 0;
+        int hi = mSyncSamples.limit() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mSampleTimesUs.get(mSyncSamples.get(mid)) <= timeUs) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return mSyncSamples.get(lo);
+    }
+
+    /**
+     * Returns the time of the latest sync sample at or before timeUs.  Decoding from there
+     * reaches the frame at timeUs.  If timeUs precedes the first sync sample, returns that.
+     */
+    public long getSyncTimeBefore(long timeUs) {
+        long syncUs = mSampleTimesUs.get(getSyncSampleBefore(timeUs));
+        if (VERBOSE) Log.d(TAG, "sync before " + timeUs + " is " + syncUs);
+        return syncUs;
+    }
+
+    /**
+     * Returns the presentation time of a sample.  Samples are numbered in decode order.
+     */
+    public long getSampleTimeUs(int sample) {
+        return mSampleTimesUs.get(sample);
+    }
+
+    /**
+     * Returns the size, in bytes, of a sample.
+     */
+    public int getSampleSize(int sample) {
+        return mSampleSizes.get(sample);
+    }
+
+    /**
+     * Returns the number of samples in the video track.
+     */
+    public int getSampleCount() {
+        return mSampleTimesUs.limit();
+    }
+
+    /**
+     * Returns the number of sync samples in the video track.
+     */
+    public int getSyncSampleCount() {
+        return mSyncSamples.limit();
+    }
+
+    /**
+     * Returns the presentation time of the last frame.
+     */
+    public long getLastSampleTimeUs() {
+        return mLastSampleTimeUs;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "close failed", ioe);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for encoded samples, with the same call sequence as MediaMuxer: addTrack()
+ * for each track, start(), writeSampleData() for each packet, then stop() and release().
+ */
+public interface SampleSink {
+    /**
+     * Adds a track.  Must be called before start().
+     *
+     * @return The index to pass to writeSampleData().
+     */
+    int addTrack(MediaFormat format);
+
+    /**
+     * Starts accepting samples.
+     */
+    void start();
+
+    /**
+     * Writes an encoded sample.  The caller may reuse the buffer once this returns.
+     *
+     * @return False if the sample was dropped.
+     */
+    boolean writeSampleData(int trackIndex, ByteBuffer buf, MediaCodec.BufferInfo info);
+
+    /**
+     * Finishes writing.
+     */
+    void stop();
+
+    /**
+     * Releases resources.
+     */
+    void release();
+}
@@ -42,7 +42,6 @@ import android.widget.Toast;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 
 /**
@@ -60,11 +59,11 @@ public class ScreenRecordActivity extends PlayMovieSurfaceActivity {
   private static final String TAG = "ScreenRecordActivity";
   private MediaProjectionManager mediaProjectionManager;
   private MediaProjection mediaProjection;
-  private MediaMuxer muxer;
+  private MuxerWriter muxer;
+  private EncoderPipeline.MuxerSink muxerSink;
+  private EncoderPipeline encoderPipeline;
   private Surface inputSurface;
   private MediaCodec videoEncoder;
-  private boolean muxerStarted;
-  private int trackIndex = -1;
 
   private static final int REQUEST_CODE_CAPTURE_PERM = 1234;
   private static final String VIDEO_MIME_TYPE = "video/avc";
@@ -103,7 +102,7 @@ public class ScreenRecordActivity extends PlayMovieSurfaceActivity {
       @Override
       public void onClick(View v) {
         if (v.getId() == R.id.screen_record_button) {
-          if (muxerStarted) {
+          if (isMuxerStarted()) {
             stopRecording();
             ((Button) findViewById(R.id.screen_record_button)).setText(R.string.toggleRecordingOn);
           } else {
@@ -127,25 +126,12 @@ public class ScreenRecordActivity extends PlayMovieSurfaceActivity {
 
       @Override
       public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-        ByteBuffer encodedData = videoEncoder.getOutputBuffer(index);
-        if (encodedData == null) {
-          throw new RuntimeException("couldn't fetch buffer at index " + index);
+        if (encoderPipeline != null) {
+          encoderPipeline.handleOutputBuffer(index, info);
+        } else {
+          // Not recording yet.
+          codec.releaseOutputBuffer(index, false);
         }
-
-        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-          info.size = 0;
-        }
-
-        if (info.size != 0) {
-          if (muxerStarted) {
-            encodedData.position(info.offset);
-            encodedData.limit(info.offset + info.size);
-            muxer.writeSampleData(trackIndex, encodedData, info);
-          }
-        }
-
-        videoEncoder.releaseOutputBuffer(index, false);
-
       }
 
       @Override
@@ -156,14 +142,10 @@ public class ScreenRecordActivity extends PlayMovieSurfaceActivity {
       @Override
       public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
         Log.d(TAG, "Output Format changed");
-        if (trackIndex >= 0) {
-          throw new RuntimeException("format changed twice");
-        }
-        trackIndex = muxer.addTrack(videoEncoder.getOutputFormat());
-        if (!muxerStarted && trackIndex >= 0) {
-          muxer.start();
-          muxerStarted = true;
+        if (encoderPipeline == null) {
+          throw new RuntimeException("format changed before recording started");
         }
+        encoderPipeline.handleOutputFormat(format);
       }
     };
   }
@@ -215,10 +197,17 @@ public class ScreenRecordActivity extends PlayMovieSurfaceActivity {
       if (!outputFile.getParentFile().exists()) {
         outputFile.getParentFile().mkdirs();
       }
-      muxer = new MediaMuxer(outputFile.getCanonicalPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+      // Live capture, so if storage can't keep up, drop disposable frames rather than
+      // stalling the encoder.
+      muxer = new MuxerWriter(
+              new MediaMuxer(outputFile.getCanonicalPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4),
+              MuxerWriter.DEFAULT_QUEUE_SIZE, MuxerWriter.OVERFLOW_DROP_NON_REFERENCE);
     } catch (IOException ioe) {
       throw new RuntimeException("MediaMuxer creation failed", ioe);
     }
+    muxerSink = new EncoderPipeline.MuxerSink(muxer);
+    encoderPipeline = new EncoderPipeline(EncoderPipeline.wrap(videoEncoder), muxerSink,
+            screenWidth, screenHeight);
 
 
     // Start the video input.
@@ -256,13 +245,17 @@ public class ScreenRecordActivity extends PlayMovieSurfaceActivity {
 
   @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
   private void releaseEncoders() {
+    if (encoderPipeline != null) {
+      Log.d(TAG, "pipeline stats: " + encoderPipeline);
+      encoderPipeline = null;
+    }
     if (muxer != null) {
-      if (muxerStarted) {
+      if (muxerSink.isStarted()) {
         muxer.stop();
       }
       muxer.release();
       muxer = null;
-      muxerStarted = false;
+      muxerSink = null;
     }
     if (videoEncoder != null) {
       videoEncoder.stop();
@@ -277,7 +270,10 @@ public class ScreenRecordActivity extends PlayMovieSurfaceActivity {
       mediaProjection.stop();
       mediaProjection = null;
     }
-    trackIndex = -1;
+  }
+
+  private boolean isMuxerStarted() {
+    return muxerSink != null && muxerSink.isStarted();
   }
 
   @RequiresApi(api = Build.VERSION_CODES.M)
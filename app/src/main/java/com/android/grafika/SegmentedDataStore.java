@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Circular data store made of fixed-size segments, allocated as they're needed.
+ * <p>
+ * The ring is divided into segments of SEGMENT_SIZE bytes.  A segment's storage isn't
+ * allocated until data is written to it, and once the live data has moved on it goes back
+ * on a free list to be reused by the next segment that needs it.  Memory use therefore
+ * tracks how much encoded data is actually buffered, rather than the worst case implied by
+ * the ring's capacity, and no single allocation is larger than a segment.
+ */
+public class SegmentedDataStore extends CircularDataStore {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    // 1MB segments hold a handful of typical packets.  Packets that straddle a segment
+    // boundary have to be copied when read, so much smaller would be wasteful.
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private final int mCapacity;
+
+    // Per-segment storage, and a ByteBuffer wrapper for each.  Null until first written.
+    private byte[][] mSegments;
+    private ByteBuffer[] mSegmentWrappers;
+
+    // Segments that have been released, available for reuse.  Used as a stack.
+    private byte[][] mFreeSegments;
+    private ByteBuffer[] mFreeWrappers;
+    private int mFreeCount;
+
+    private int mAllocatedCount;
+
+    public SegmentedDataStore(int capacity) {
+        mCapacity = capacity;
+        int segmentCount = (capacity + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        mSegments = new byte[segmentCount][];
+        mSegmentWrappers = new ByteBuffer[segmentCount];
+        mFreeSegments = new byte[segmentCount][];
+        mFreeWrappers = new ByteBuffer[segmentCount];
+    }
+
+    @Override
+    public CircularDataStore createResized(int capacity) {
+        return new SegmentedDataStore(capacity);
+    }
+
+    @Override
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of bytes of segment storage allocated so far, including segments
+     * sitting on the free list.
+     */
+    public long getAllocatedBytes() {
+        return (long) mAllocatedCount * SEGMENT_SIZE;
+    }
+
+    @Override
+    public void put(int offset, ByteBuffer buf, int size) {
+        while (size > 0) {
+            if (offset == mCapacity) {
+                offset = 0;
+            }
+            int segIndex = offset / SEGMENT_SIZE;
+            int segOffset = offset % SEGMENT_SIZE;
+            int count = Math.min(size, Math.min(SEGMENT_SIZE - segOffset, mCapacity - offset));
+            buf.get(getSegment(segIndex), segOffset, count);
+            offset += count;
+            size -= count;
+        }
+    }
+
+    @Override
+    public ByteBuffer get(int offset, int length, MediaCodec.BufferInfo info) {
+        int segIndex = offset / SEGMENT_SIZE;
+        int segOffset = offset % SEGMENT_SIZE;
+        if (segOffset + length <= SEGMENT_SIZE && offset + length <= mCapacity) {
+            // one segment; return its wrapper to avoid copying data
+            info.offset = segOffset;
+            return mSegmentWrappers[segIndex];
+        }
+
+        // Spans multiple segments, or wraps around the end of the ring.
+        ByteBuffer tempBuf = getStagingBuffer(length);
+        while (length > 0) {
+            if (offset == mCapacity) {
+                offset = 0;
+            }
+            segIndex = offset / SEGMENT_SIZE;
+            segOffset = offset % SEGMENT_SIZE;
+            int count = Math.min(length,
+                    Math.min(SEGMENT_SIZE - segOffset, mCapacity - offset));
+            tempBuf.put(mSegments[segIndex], segOffset, count);
+            offset += count;
+            length -= count;
+        }
+        tempBuf.flip();
+        info.offset = 0;
+        return tempBuf;
+    }
+
+    @Override
+    public void trim(int liveStart, int liveEnd) {
+        for (int i = 0; i < mSegments.length; i++) {
+            if (mSegments[i] != null && !isLive(i, liveStart, liveEnd)) {
+                releaseSegment(i);
+            }
+        }
+    }
+
+    /**
+     * Returns true if segment "segIndex" overlaps the ring interval [liveStart, liveEnd).
+     */
+    private boolean isLive(int segIndex, int liveStart, int liveEnd) {
+        int segStart = segIndex * SEGMENT_SIZE;
+        int segEnd = Math.min(segStart + SEGMENT_SIZE, mCapacity);
+        if (liveStart == liveEnd) {
+            return false;
+        } else if (liveStart < liveEnd) {
+            return segStart < liveEnd && liveStart < segEnd;
+        } else {
+            // live interval wraps around the end of the ring
+            return segStart < liveEnd || liveStart < segEnd;
+        }
+    }
+
+    /**
+     * Returns the storage for the specified segment, allocating it if necessary.
+     */
+    private byte[] getSegment(int segIndex) {
+        byte[] segment = mSegments[segIndex];
+        if (segment == null) {
+            if (mFreeCount > 0) {
+                mFreeCount--;
+                segment = mFreeSegments[mFreeCount];
+                mSegmentWrappers[segIndex] = mFreeWrappers[mFreeCount];
+                mFreeSegments[mFreeCount] = null;
+                mFreeWrappers[mFreeCount] = null;
+            } else {
+                if (VERBOSE) Log.d(TAG, "allocating segment " + segIndex);
+                segment = new byte[SEGMENT_SIZE];
+                mSegmentWrappers[segIndex] = ByteBuffer.wrap(segment);
+                mAllocatedCount++;
+            }
+            mSegments[segIndex] = segment;
+        }
+        return segment;
+    }
+
+    /**
+     * Moves the specified segment's storage to the free list.
+     */
+    private void releaseSegment(int segIndex) {
+        if (VERBOSE) Log.d(TAG, "releasing segment " + segIndex);
+        mFreeSegments[mFreeCount] = mSegments[segIndex];
+        mFreeWrappers[mFreeCount] = mSegmentWrappers[segIndex];
+        mFreeCount++;
+        mSegments[segIndex] = null;
+        mSegmentWrappers[segIndex] = null;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Writes encoded video to a series of .mp4 files, starting a new one every so often without
+ * stopping the encoder.
+ * <p>
+ * A long recording in a single file is lost entirely if the app dies before the muxer writes
+ * its index.  Here, once the current segment has run for the requested duration or grown to
+ * the requested size, the next sync frame on the video track starts a new segment, so each
+ * file plays on its own and a crash costs at most one segment.  When a segment is due, we
+ * ask the encoder for a sync frame (see {@link SyncFrameRequester}) rather than waiting for
+ * the next scheduled one, so segments come out close to the requested length.
+ * <p>
+ * Rotation doesn't stall the caller.  The next segment's muxer is created on a helper
+ * thread ahead of time, and the finished segment is drained and closed on another, while
+ * new packets go into the new segment.  Each segment is fed through its own MuxerWriter.
+ * <p>
+ * Segment files are named after the output file, e.g. "movie.mp4" becomes "movie-000.mp4",
+ * "movie-001.mp4", and so on.
+ */
+public class SegmentingMuxer implements SampleSink {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /**
+     * Something that can make the encoder emit a sync frame soon.
+     */
+    public interface SyncFrameRequester {
+        void requestSyncFrame();
+    }
+
+    private final String mBasePath;
+    private final long mMaxSegmentUsec;
+    private final long mMaxSegmentBytes;
+    private SyncFrameRequester mSyncFrameRequester;
+
+    private final ArrayList<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+    private int mSyncTrack = -1;
+
+    // Producer-side state.
+    private MuxerWriter mCurrent;
+    private int mSegmentIndex;
+    private long mSegmentStartUsec;
+    private long mSegmentBytes;
+    private boolean mSyncFrameRequested;
+
+    // The next segment, opened by mOpenThread.  Read mNext only after joining the thread.
+    private Thread mOpenThread;
+    private MuxerWriter mNext;
+    private File mNextFile;
+
+    // Segments being finished in the background.
+    private final ArrayList<Thread> mCloseThreads = new ArrayList<Thread>();
+    private final Object mCloseLock = new Object();
+    private RuntimeException mCloseError;
+    private final ArrayList<File> mFinishedFiles = new ArrayList<File>();
+
+    /**
+     * Prepares to write segments.  A limit of zero means "no limit", but at least one limit
+     * must be set.
+     *
+     * @param outputFile Names the segment files; it is not itself created.
+     * @param maxSegmentSec Start a new segment after this many seconds of video.
+     * @param maxSegmentBytes Start a new segment after this many bytes of encoded data.
+     */
+    public SegmentingMuxer(File outputFile, int maxSegmentSec, long maxSegmentBytes) {
+        if (maxSegmentSec <= 0 && maxSegmentBytes <= 0) {
+            throw new RuntimeException("no segment limit set");
+        }
+        String path = outputFile.getPath();
+        int dot = path.lastIndexOf('.');
+        if (dot > path.lastIndexOf(File.separatorChar)) {
+            path = path.substring(0, dot);
+        }
+        mBasePath = path;
+        mMaxSegmentUsec = maxSegmentSec * 1000000L;
+        mMaxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Sets the object that's asked for a sync frame when a segment is due.  Without one,
+     * segments end at the encoder's regular sync frames.
+     */
+    public void setSyncFrameRequester(SyncFrameRequester requester) {
+        mSyncFrameRequester = requester;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mCurrent != null) {
+            throw new RuntimeException("already started");
+        }
+        int trackIndex = mFormats.size();
+        mFormats.add(format);
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mSyncTrack < 0 && mime != null && mime.startsWith("video/")) {
+            mSyncTrack = trackIndex;
+        }
+        return trackIndex;
+    }
+
+    @Override
+    public void start() {
+        if (mSyncTrack < 0) {
+            throw new RuntimeException("no video track to segment on");
+        }
+        mCurrent = openSegment(segmentFile(0));
+        mCurrent.start();
+        mSegmentIndex = 0;
+        mSegmentStartUsec = -1;
+        prepareNext();
+    }
+
+    /**
+     * Writes a packet to the current segment, first starting a new segment if this is a
+     * sync frame and the current one is due to end.
+     */
+    @Override
+    public boolean writeSampleData(int trackIndex, ByteBuffer buf, MediaCodec.BufferInfo info) {
+        if (trackIndex == mSyncTrack && info.size != 0 &&
+                (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            if (mSegmentStartUsec < 0) {
+                mSegmentStartUsec = info.presentationTimeUs;
+            } else if (isSegmentDue(info.presentationTimeUs)) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                    rotate(info.presentationTimeUs);
+                } else if (!mSyncFrameRequested && mSyncFrameRequester != null) {
+                    if (VERBOSE) Log.d(TAG, "segment due, requesting sync frame");
+                    mSyncFrameRequester.requestSyncFrame();
+                    mSyncFrameRequested = true;
+                }
+            }
+        }
+        mSegmentBytes += info.size;
+        return mCurrent.writeSampleData(trackIndex, buf, info);
+    }
+
+    /**
+     * Finishes the current segment, and waits for earlier segments to be finished.  If
+     * finishing any segment failed, the exception is rethrown here.
+     */
+    @Override
+    public void stop() {
+        discardNext();
+        if (mCurrent != null) {
+            mCurrent.stop();
+            synchronized (mCloseLock) {
+                mFinishedFiles.add(segmentFile(mSegmentIndex));
+            }
+        }
+        joinCloseThreads();
+        synchronized (mCloseLock) {
+            if (mCloseError != null) {
+                throw mCloseError;
+            }
+        }
+        Log.d(TAG, "wrote " + (mSegmentIndex + 1) + " segments");
+    }
+
+    @Override
+    public void release() {
+        discardNext();
+        joinCloseThreads();
+        if (mCurrent != null) {
+            mCurrent.release();
+            mCurrent = null;
+        }
+    }
+
+    /**
+     * Returns the segment files that have been completely written so far.
+     */
+    public File[] getFinishedFiles() {
+        synchronized (mCloseLock) {
+            return mFinishedFiles.toArray(new File[mFinishedFiles.size()]);
+        }
+    }
+
+    /**
+     * Returns true if the current segment has reached one of its limits.
+     */
+    private boolean isSegmentDue(long ptsUsec) {
+        return (mMaxSegmentUsec > 0 && ptsUsec - mSegmentStartUsec >= mMaxSegmentUsec) ||
+                (mMaxSegmentBytes > 0 && mSegmentBytes >= mMaxSegmentBytes);
+    }
+
+    /**
+     * Switches to the next segment, and finishes the current one in the background.
+     */
+    private void rotate(long ptsUsec) {
+        MuxerWriter next = takeNext();
+        next.start();
+
+        final MuxerWriter prev = mCurrent;
+        final File prevFile = segmentFile(mSegmentIndex);
+        mCurrent = next;
+        mSegmentIndex++;
+        Log.d(TAG, "starting segment " + mSegmentIndex + " at pts=" + ptsUsec +
+                " (previous: " + (ptsUsec - mSegmentStartUsec) / 1000 + "ms, " +
+                mSegmentBytes + " bytes)");
+        mSegmentStartUsec = ptsUsec;
+        mSegmentBytes = 0;
+        mSyncFrameRequested = false;
+
+        Thread closeThread = new Thread("SegmentClose") {
+            @Override
+            public void run() {
+                try {
+                    prev.stop();
+                    synchronized (mCloseLock) {
+                        mFinishedFiles.add(prevFile);
+                    }
+                } catch (RuntimeException re) {
+                    Log.e(TAG, "failed to finish " + prevFile, re);
+                    synchronized (mCloseLock) {
+                        if (mCloseError == null) {
+                            mCloseError = re;
+                        }
+                    }
+                } finally {
+                    prev.release();
+                }
+            }
+        };
+        mCloseThreads.add(closeThread);
+        closeThread.start();
+
+        prepareNext();
+    }
+
+    /**
+     * Starts opening the segment after the current one.
+     */
+    private void prepareNext() {
+        final File file = segmentFile(mSegmentIndex + 1);
+        mNextFile = file;
+        mNext = null;
+        mOpenThread = new Thread("SegmentOpen") {
+            @Override
+            public void run() {
+                try {
+                    mNext = openSegment(file);
+                } catch (RuntimeException re) {
+                    // takeNext() will try again, and report the failure if it persists
+                    Log.w(TAG, "failed to open " + file, re);
+                }
+            }
+        };
+        mOpenThread.start();
+    }
+
+    /**
+     * Returns the segment opened by prepareNext(), opening it here if that failed.
+     */
+    private MuxerWriter takeNext() {
+        joinOpenThread();
+        MuxerWriter next = mNext;
+        mNext = null;
+        if (next == null) {
+            Log.w(TAG, "next segment wasn't ready, opening it now");
+            next = openSegment(mNextFile);
+        }
+        return next;
+    }
+
+    /**
+     * Gets rid of the segment opened by prepareNext(), which will never be written.
+     */
+    private void discardNext() {
+        if (mOpenThread == null) {
+            return;
+        }
+        joinOpenThread();
+        if (mNext != null) {
+            mNext.release();
+            mNext = null;
+        }
+        if (mNextFile.exists() && !mNextFile.delete()) {
+            Log.w(TAG, "unable to delete unused " + mNextFile);
+        }
+    }
+
+    private void joinOpenThread() {
+        if (mOpenThread != null) {
+            try {
+                mOpenThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "open thread join() was interrupted", ie);
+            }
+            mOpenThread = null;
+        }
+    }
+
+    private void joinCloseThreads() {
+        for (Thread thread : mCloseThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "close thread join() was interrupted", ie);
+            }
+        }
+        mCloseThreads.clear();
+    }
+
+    /**
+     * Creates a muxer for a segment, with all tracks added, ready to start.
+     */
+    private MuxerWriter openSegment(File file) {
+        MediaMuxer muxer;
+        try {
+            muxer = new MediaMuxer(file.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException ioe) {
+            throw new RuntimeException("unable to create " + file, ioe);
+        }
+        MuxerWriter writer = new MuxerWriter(muxer);
+        for (MediaFormat format : mFormats) {
+            writer.addTrack(format);
+        }
+        if (VERBOSE) Log.d(TAG, "opened segment " + file);
+        return writer;
+    }
+
+    private File segmentFile(int index) {
+        return new File(String.format(Locale.US, "%s-%03d.mp4", mBasePath, index));
+    }
+}
@@ -53,9 +53,9 @@ public class SoftInputSurfaceActivity extends Activity {
     private static final int NUM_FRAMES = 8;
 
     // "live" state during recording
-    private MediaCodec.BufferInfo mBufferInfo;
     private MediaCodec mEncoder;
     private MediaMuxer mMuxer;
+    private EncoderPipeline mPipeline;
     private Surface mInputSurface;
     private int mTrackIndex;
     private boolean mMuxerStarted;
@@ -107,8 +107,6 @@ public class SoftInputSurfaceActivity extends Activity {
      * Prepares the video encoder, muxer, and an input surface.
      */
     private void prepareEncoder(File outputFile) throws IOException {
-        mBufferInfo = new MediaCodec.BufferInfo();
-
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, WIDTH, HEIGHT);
 
         // Set some properties.  Failing to specify some of these can cause the MediaCodec
@@ -139,6 +137,31 @@ public class SoftInputSurfaceActivity extends Activity {
 
         mTrackIndex = -1;
         mMuxerStarted = false;
+        mPipeline = new EncoderPipeline(EncoderPipeline.wrap(mEncoder), new FakePtsSink(),
+                WIDTH, HEIGHT);
+    }
+
+    /**
+     * Writes encoder output to the muxer.  There's no way to set the time stamp when
+     * drawing through the Canvas, so we make one up for each frame.
+     */
+    private class FakePtsSink implements EncoderPipeline.Sink {
+        @Override
+        public void onOutputFormat(MediaFormat format) {
+            // now that we have the Magic Goodies, start the muxer
+            mTrackIndex = mMuxer.addTrack(format);
+            mMuxer.start();
+            mMuxerStarted = true;
+        }
+
+        @Override
+        public void onPacket(ByteBuffer buf, MediaCodec.BufferInfo info, int contents) {
+            info.presentationTimeUs = mFakePts;
+            mFakePts += 1000000L / FRAMES_PER_SECOND;
+
+            mMuxer.writeSampleData(mTrackIndex, buf, info);
+            if (VERBOSE) Log.d(TAG, "sent " + info.size + " bytes to muxer");
+        }
     }
 
     /**
@@ -156,7 +179,10 @@ public class SoftInputSurfaceActivity extends Activity {
             mInputSurface = null;
         }
         if (mMuxer != null) {
-            mMuxer.stop();
+            // stop() throws an exception if you haven't fed it any data.
+            if (mMuxerStarted) {
+                mMuxer.stop();
+            }
             mMuxer.release();
             mMuxer = null;
         }
@@ -170,84 +196,7 @@ public class SoftInputSurfaceActivity extends Activity {
      * Calling this with endOfStream set should be done once, right before stopping the muxer.
      */
     private void drainEncoder(boolean endOfStream) {
-        final int TIMEOUT_USEC = 10000;
-        if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
-
-        if (endOfStream) {
-            if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
-            mEncoder.signalEndOfInputStream();
-        }
-
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-        while (true) {
-            int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // no output available yet
-                if (!endOfStream) {
-                    break;      // out of while
-                } else {
-                    if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
-                }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // not expected for an encoder
-                encoderOutputBuffers = mEncoder.getOutputBuffers();
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
-            } else if (encoderStatus < 0) {
-                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
-                        encoderStatus);
-                // let's ignore it
-            } else {
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                            " was null");
-                }
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
-                    // adjust the ByteBuffer values to match BufferInfo
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-                    mBufferInfo.presentationTimeUs = mFakePts;
-                    mFakePts += 1000000L / FRAMES_PER_SECOND;
-
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer");
-                }
-
-                mEncoder.releaseOutputBuffer(encoderStatus, false);
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (!endOfStream) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                    } else {
-                        if (VERBOSE) Log.d(TAG, "end of stream reached");
-                    }
-                    break;      // out of while
-                }
-            }
-        }
+        mPipeline.drain(endOfStream);
     }
 
     /**
@@ -16,7 +16,11 @@
 
 package com.android.grafika;
 
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 
 /**
  * Movie player callback.
@@ -24,24 +28,54 @@ import android.util.Log;
  * The goal here is to play back frames at the original rate.  This is done by introducing
  * a pause before the frame is submitted to the renderer.
  * <p>
- * This is not coordinated with VSYNC.  Since we can't control the display's refresh rate, and
- * the source material has time stamps that specify when each frame should be presented,
- * we will have to drop or repeat frames occasionally.
+ * By default this is not coordinated with VSYNC.  Since we can't control the display's refresh
+ * rate, and the source material has time stamps that specify when each frame should be
+ * presented, we will have to drop or repeat frames occasionally.
+ * <p>
+ * In scheduled mode (see {@link #setScheduledRelease(boolean)}), each frame is instead given a
+ * display time, snapped to the nearest VSYNC as reported by Choreographer, and MoviePlayer
+ * passes that to releaseOutputBuffer().  SurfaceFlinger then shows the frame at that VSYNC, so
+ * the accuracy of Thread.sleep() no longer matters.  We still wait until shortly before the
+ * display time to release the frame, so buffers don't pile up ahead of the display.  Only
+ * SurfaceFlinger honors the display time; a SurfaceTexture consumer (e.g. TextureView) shows
+ * frames as soon as they're released.
+ * <p>
+ * In both modes, the error between each frame's intended and expected display times is
+ * tracked, and logged periodically.
  * <p>
  * Thread restrictions are noted in the method descriptions.  The FrameCallback overrides should
  * only be called from the MoviePlayer.
  */
 public class SpeedControlCallback implements MoviePlayer.FrameCallback {
     private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
     private static final boolean CHECK_SLEEP_TIME = false;
 
     private static final long ONE_MILLION = 1000000L;
+    private static final long ONE_BILLION = 1000000000L;
+    private static final long DEFAULT_VSYNC_PERIOD_NS = ONE_BILLION / 60;
+    private static final int RELEASE_LEAD_VSYNCS = 2;   // release this far ahead of display
+    private static final int STATS_INTERVAL = 300;      // frames between error reports
 
     private long mPrevPresentUsec;
     private long mPrevMonoUsec;
     private long mFixedFrameDurationUsec;
     private boolean mLoopReset;
 
+    // Scheduled mode.  The VSYNC fields are written by VsyncTracker on the main thread.
+    private boolean mScheduledRelease;
+    private long mRenderTimeNs = -1;
+    private final VsyncTracker mVsyncTracker = new VsyncTracker();
+    private volatile boolean mVsyncTracking;
+    private volatile long mVsyncTimeNs;
+    private volatile long mVsyncPeriodNs = DEFAULT_VSYNC_PERIOD_NS;
+    private volatile long mLastRenderNs;
+
+    // Frame-time error statistics, in usec.
+    private int mErrorCount;
+    private long mErrorAbsSum;
+    private long mErrorMax;
+
     /**
      * Sets a fixed playback rate.  If set, this will ignore the presentation time stamp
      * in the video file.  Must be called before playback thread starts.
@@ -50,6 +84,16 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
         mFixedFrameDurationUsec = ONE_MILLION / fps;
     }
 
+    /**
+     * Sets scheduled mode.  If set, and the device supports it (API 21+), frames are
+     * released with a VSYNC-aligned display time rather than after a precise sleep.  Must be
+     * called before playback thread starts.
+     */
+    public void setScheduledRelease(boolean scheduledRelease) {
+        mScheduledRelease = scheduledRelease &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
     // runs on decode thread
     @Override
     public void preRender(long presentationTimeUsec) {
@@ -61,6 +105,7 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
         // If the frame rate is faster than vsync we should be dropping frames.  On
         // Android 4.4 this may not be happening.
 
+        mRenderTimeNs = -1;
         if (mPrevMonoUsec == 0) {
             // Latch current values, then return immediately.
             mPrevMonoUsec = System.nanoTime() / 1000;
@@ -75,6 +120,13 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
                 // for now we just use 30fps.
                 mPrevPresentUsec = presentationTimeUsec - ONE_MILLION / 30;
                 mLoopReset = false;
+
+                // After a seek we may have been sitting on one frame for a while.  Don't
+                // try to make up the lost time by rushing the frames that follow.
+                long earliestUsec = System.nanoTime() / 1000 - ONE_MILLION / 30;
+                if (mPrevMonoUsec < earliestUsec) {
+                    mPrevMonoUsec = earliestUsec;
+                }
             }
             if (mFixedFrameDurationUsec != 0) {
                 // Caller requested a fixed frame rate.  Ignore PTS.
@@ -98,6 +150,13 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
             }
 
             long desiredUsec = mPrevMonoUsec + frameDelta;  // when we want to wake up
+            if (mScheduledRelease) {
+                scheduleRender(desiredUsec);
+                mPrevMonoUsec += frameDelta;
+                mPrevPresentUsec += frameDelta;
+                return;
+            }
+
             long nowUsec = System.nanoTime() / 1000;
             while (nowUsec < (desiredUsec - 100) /*&& mState == RUNNING*/) {
                 // Sleep until it's time to wake up.  To be responsive to "stop" commands
@@ -127,6 +186,7 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
                 } catch (InterruptedException ie) {}
                 nowUsec = System.nanoTime() / 1000;
             }
+            recordError(nowUsec - desiredUsec, "sleep");
 
             // Advance times using calculated time values, not the post-sleep monotonic
             // clock time, to avoid drifting.
@@ -135,6 +195,12 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
         }
     }
 
+    // runs on decode thread
+    @Override
+    public long getRenderTimeNs() {
+        return mRenderTimeNs;
+    }
+
     // runs on decode thread
     @Override public void postRender() {}
 
@@ -142,4 +208,98 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
     public void loopReset() {
         mLoopReset = true;
     }
+
+    /**
+     * Sets mRenderTimeNs for a frame we want displayed at desiredUsec, and waits until it's
+     * nearly time to release it.  Runs on decode thread.
+     */
+    private void scheduleRender(long desiredUsec) {
+        long nowNs = System.nanoTime();
+        mLastRenderNs = nowNs;
+        if (!mVsyncTracking) {
+            // Choreographer has to be used from a Looper thread.
+            mVsyncTracking = true;
+            new Handler(Looper.getMainLooper()).post(mVsyncTracker);
+        }
+
+        // Snap to the nearest VSYNC.  Until we've heard from Choreographer, use the time as-is.
+        long desiredNs = desiredUsec * 1000;
+        long vsyncNs = mVsyncTimeNs;
+        long periodNs = mVsyncPeriodNs;
+        long displayNs = desiredNs;
+        if (vsyncNs != 0) {
+            displayNs = vsyncNs + Math.round((desiredNs - vsyncNs) / (double) periodNs) * periodNs;
+        }
+
+        // Don't get too far ahead of the display.  This wait doesn't need to be precise.
+        long releaseNs = displayNs - RELEASE_LEAD_VSYNCS * periodNs;
+        while (nowNs < releaseNs) {
+            long sleepTimeMsec = Math.min((releaseNs - nowNs) / 1000000, 500);
+            if (sleepTimeMsec <= 0) {
+                break;
+            }
+            try {
+                Thread.sleep(sleepTimeMsec);
+            } catch (InterruptedException ie) {}
+            nowNs = System.nanoTime();
+        }
+
+        // SurfaceFlinger shows a frame at the first VSYNC at or after its timestamp.  Aim
+        // half a period early, so the frame lands on the VSYNC we picked and not the one
+        // before it.  If we're already past that, the frame will just be late.
+        mRenderTimeNs = displayNs - periodNs / 2;
+        long expectedNs = Math.max(displayNs, nowNs);
+        recordError((expectedNs - desiredNs) / 1000, "scheduled");
+    }
+
+    /**
+     * Adds a frame-time error to the statistics, and logs them every STATS_INTERVAL frames.
+     */
+    private void recordError(long errorUsec, String mode) {
+        long absError = Math.abs(errorUsec);
+        mErrorAbsSum += absError;
+        if (absError > mErrorMax) {
+            mErrorMax = absError;
+        }
+        if (++mErrorCount == STATS_INTERVAL) {
+            Log.d(TAG, mode + " frame-time error: mean " + (mErrorAbsSum / mErrorCount) +
+                    " usec, max " + mErrorMax + " usec over " + mErrorCount + " frames");
+            mErrorCount = 0;
+            mErrorAbsSum = 0;
+            mErrorMax = 0;
+        }
+    }
+
+    /**
+     * Tracks VSYNC times and the refresh period with Choreographer.  Runs on the main thread.
+     * Stops itself when frames haven't been rendered for a second.
+     */
+    private class VsyncTracker implements Runnable, Choreographer.FrameCallback {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            long prevNs = mVsyncTimeNs;
+            long periodNs = mVsyncPeriodNs;
+            if (prevNs != 0) {
+                // Smooth the period.  Ignore gaps from missed callbacks.
+                long deltaNs = frameTimeNanos - prevNs;
+                if (deltaNs > periodNs / 2 && deltaNs < periodNs * 3 / 2) {
+                    mVsyncPeriodNs = (periodNs * 7 + deltaNs) / 8;
+                }
+            }
+            mVsyncTimeNs = frameTimeNanos;
+
+            if (System.nanoTime() - mLastRenderNs < ONE_BILLION) {
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                if (VERBOSE) Log.d(TAG, "playback idle, VSYNC tracking stopped");
+                mVsyncTimeNs = 0;
+                mVsyncTracking = false;
+            }
+        }
+    }
 }
@@ -19,6 +19,8 @@ package com.android.grafika;
 import android.graphics.SurfaceTexture;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.Matrix;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -26,6 +28,7 @@ import android.util.Log;
 
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.GlUtil;
 import com.android.grafika.gles.Texture2dProgram;
 import com.android.grafika.gles.WindowSurface;
 
@@ -41,6 +44,27 @@ import java.lang.ref.WeakReference;
  * manages both sides of the encoder (feeding and draining); the only external input is
  * the GL texture.
  * <p>
+ * Frame descriptors are handed over through a ring (see FrameDescriptorRing).  The frames
+ * themselves all live in the one shared texture, so the producer mustn't latch a new frame
+ * until the encoder is done with the last one; waitForTextureRelease() takes care of that.
+ * If the encoder hasn't started on the last frame yet, that frame is given up (and counted
+ * as dropped), so the producer isn't held back, unless the frame policy is POLICY_BLOCK, in
+ * which case the producer waits for the encoder.  If the encoder is reading the texture,
+ * the producer waits for it to finish.  Since there's only one texture, the encoder only
+ * ever encodes the newest frame in the ring; any others are counted as coalesced.
+ * <p>
+ * If both contexts support GLES 3.0, the encoder waits on a GL fence set after the texture
+ * was latched, and the producer waits, on the CPU, for a fence set after the encoder's last
+ * read.  Otherwise the encoder calls glFinish() before it lets the producer go ahead.
+ * <p>
+ * The encoder can produce several outputs at once (e.g. a full-size archive and a small
+ * preview), each with its own size, bit rate, codec, and muxer; see EncoderConfig.Output.
+ * All outputs share one EGL context.  With more than one output, each camera frame is
+ * rendered once into an offscreen texture the size of the largest output, and that's scaled
+ * into each encoder's input surface, so the external texture is only sampled once.  An
+ * output with a different aspect ratio gets a centered crop of the offscreen texture, so
+ * the picture isn't stretched.
+ * <p>
  * The design is complicated slightly by the need to create an EGL context that shares state
  * with a view that gets restarted if (say) the device orientation changes.  When the view
  * in question is a GLSurfaceView, we don't have full control over the EGL context creation
@@ -69,16 +93,49 @@ public class TextureMovieEncoder implements Runnable {
     private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
     private static final int MSG_QUIT = 5;
 
+    // State of the shared texture.
+    private static final int TEXTURE_FREE = 0;      // producer may latch a new frame
+    private static final int TEXTURE_QUEUED = 1;    // latched frame waiting for the encoder
+    private static final int TEXTURE_READING = 2;   // encoder is drawing from it
+
+    private static final long FENCE_TIMEOUT_NSEC = 100000000L;  // 100ms
+
+
     // ----- accessed exclusively by encoder thread -----
-    private WindowSurface mInputWindowSurface;
+    private WindowSurface[] mInputWindowSurfaces;
     private EglCore mEglCore;
     private FullFrameRect mFullScreen;
     private int mTextureId;
     private int mFrameNum;
-    private VideoEncoderCore mVideoEncoder;
+    private VideoEncoderCore[] mVideoEncoders;
+
+    // Used when there's more than one output.  Frames are rendered into the offscreen
+    // texture, which mScaler then draws into each input surface.
+    private int mFramebuffer;
+    private int mOffscreenTexture;
+    private int mOffscreenWidth;
+    private int mOffscreenHeight;
+    private FullFrameRect mScaler;
+    private float[][] mOutputTransforms;    // crops the offscreen texture for each output
+    private final float[] mEncoderTransform = new float[16];
+
+    // ----- accessed exclusively by the thread calling frameAvailable() -----
+    private final float[] mCallerTransform = new float[16];
+    private boolean mCallerFencesChecked;
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
+    private volatile FrameDescriptorRing mFrameRing;
+    private volatile int mFramePolicy;
+    private volatile boolean mEncoderUsesFences;
+    private volatile boolean mCallerUsesFences;
+
+    // Hand-off of the shared texture.  The fences are GL fence sync objects, or zero; whoever
+    // takes a fence out deletes it.
+    private final Object mTextureLock = new Object();
+    private int mTextureState = TEXTURE_FREE;
+    private long mLatchFence;           // texture latched by the producer
+    private long mReleaseFence;         // texture last read by the encoder
 
     private Object mReadyFence = new Object();      // guards ready/running
     private boolean mReady;
@@ -96,25 +153,89 @@ public class TextureMovieEncoder implements Runnable {
      *       with reasonable defaults for those and bit rate.
      */
     public static class EncoderConfig {
-        final File mOutputFile;
-        final int mWidth;
-        final int mHeight;
-        final int mBitRate;
+        // Every frame is latched into the one shared texture, so at most one frame can be
+        // waiting for the encoder, and a newer frame always replaces it.  The only choice is
+        // whether the producer waits for the encoder to take the frame (POLICY_BLOCK) or
+        // drops it (POLICY_DROP_OLDEST).  A deeper window or POLICY_DROP_NEWEST would need a
+        // texture per frame in flight.
+        private static final int FRAME_WINDOW = 1;
+        public static final int DEFAULT_FRAME_POLICY = FrameDescriptorRing.POLICY_DROP_OLDEST;
+
+        /**
+         * One encoded output: a movie file with its own size and bit rate.
+         */
+        public static class Output {
+            final File mOutputFile;
+            final int mWidth;
+            final int mHeight;
+            final int mBitRate;
+
+            public Output(File outputFile, int width, int height, int bitRate) {
+                mOutputFile = outputFile;
+                mWidth = width;
+                mHeight = height;
+                mBitRate = bitRate;
+            }
+
+            @Override
+            public String toString() {
+                return mWidth + "x" + mHeight + " @" + mBitRate + " to '" + mOutputFile + "'";
+            }
+        }
+
+        final Output[] mOutputs;
         final EGLContext mEglContext;
+        final int mFramePolicy;
 
         public EncoderConfig(File outputFile, int width, int height, int bitRate,
                 EGLContext sharedEglContext) {
-            mOutputFile = outputFile;
-            mWidth = width;
-            mHeight = height;
-            mBitRate = bitRate;
+            this(outputFile, width, height, bitRate, sharedEglContext, DEFAULT_FRAME_POLICY);
+        }
+
+        /**
+         * @param framePolicy What to do with a frame the encoder hasn't taken when the next
+         *     one arrives: FrameDescriptorRing.POLICY_BLOCK or POLICY_DROP_OLDEST.
+         */
+        public EncoderConfig(File outputFile, int width, int height, int bitRate,
+                EGLContext sharedEglContext, int framePolicy) {
+            this(new Output[] { new Output(outputFile, width, height, bitRate) },
+                    sharedEglContext, framePolicy);
+        }
+
+        /**
+         * Configures several simultaneous outputs.
+         */
+        public EncoderConfig(Output[] outputs, EGLContext sharedEglContext) {
+            this(outputs, sharedEglContext, DEFAULT_FRAME_POLICY);
+        }
+
+        /**
+         * Configures several simultaneous outputs.
+         *
+         * @param framePolicy What to do with a frame the encoder hasn't taken when the next
+         *     one arrives: FrameDescriptorRing.POLICY_BLOCK or POLICY_DROP_OLDEST.
+         */
+        public EncoderConfig(Output[] outputs, EGLContext sharedEglContext, int framePolicy) {
+            if (outputs.length == 0) {
+                throw new RuntimeException("no outputs");
+            }
+            if (framePolicy != FrameDescriptorRing.POLICY_BLOCK &&
+                    framePolicy != FrameDescriptorRing.POLICY_DROP_OLDEST) {
+                throw new RuntimeException("unsupported frame policy " + framePolicy);
+            }
+            mOutputs = outputs.clone();
             mEglContext = sharedEglContext;
+            mFramePolicy = framePolicy;
         }
 
         @Override
         public String toString() {
-            return "EncoderConfig: " + mWidth + "x" + mHeight + " @" + mBitRate +
-                    " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext;
+            StringBuilder sb = new StringBuilder("EncoderConfig: ");
+            for (int i = 0; i < mOutputs.length; i++) {
+                sb.append(i == 0 ? "" : ", ").append(mOutputs[i]);
+            }
+            sb.append(" ctxt=").append(mEglContext).append(" policy=").append(mFramePolicy);
+            return sb.toString();
         }
     }
 
@@ -134,6 +255,13 @@ public class TextureMovieEncoder implements Runnable {
                 return;
             }
             mRunning = true;
+            mFrameRing = new FrameDescriptorRing(EncoderConfig.FRAME_WINDOW,
+                    config.mFramePolicy);
+            mFramePolicy = config.mFramePolicy;
+            synchronized (mTextureLock) {
+                mTextureState = TEXTURE_FREE;
+            }
+            mCallerFencesChecked = false;
             new Thread(this, "TextureMovieEncoder").start();
             while (!mReady) {
                 try {
@@ -176,21 +304,25 @@ public class TextureMovieEncoder implements Runnable {
      * Tells the video recorder to refresh its EGL surface.  (Call from non-encoder thread.)
      */
     public void updateSharedContext(EGLContext sharedContext) {
+        // Any fences we're holding belong to the old share group.  Forget them, and check
+        // what the new context supports.
+        synchronized (mTextureLock) {
+            mLatchFence = mReleaseFence = 0;
+        }
+        mCallerFencesChecked = false;
         mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_SHARED_CONTEXT, sharedContext));
     }
 
     /**
      * Tells the video recorder that a new frame is available.  (Call from non-encoder thread.)
      * <p>
-     * This function sends a message and returns immediately.  This isn't sufficient -- we
-     * don't want the caller to latch a new frame until we're done with this one -- but we
-     * can get away with it so long as the input frame rate is reasonable and the encoder
-     * thread doesn't stall.
+     * The frame's transform and time stamp are copied into a preallocated ring, and the
+     * encoder thread is woken if the ring was empty, so this doesn't allocate.  Call it from
+     * the thread that latches the texture, right after updateTexImage(), with that thread's
+     * EGL context current.
      * <p>
-     * TODO: either block here until the texture has been rendered onto the encoder surface,
-     * or have a separate "block if still busy" method that the caller can execute immediately
-     * before it calls updateTexImage().  The latter is preferred because we don't want to
-     * stall the caller while this thread does work.
+     * This doesn't wait.  To keep updateTexImage() from overwriting the texture while the
+     * encoder still needs it, call {@link #waitForTextureRelease()} before it.
      */
     public void frameAvailable(SurfaceTexture st) {
         synchronized (mReadyFence) {
@@ -199,8 +331,7 @@ public class TextureMovieEncoder implements Runnable {
             }
         }
 
-        float[] transform = new float[16];      // TODO - avoid alloc every frame
-        st.getTransformMatrix(transform);
+        st.getTransformMatrix(mCallerTransform);
         long timestamp = st.getTimestamp();
         if (timestamp == 0) {
             // Seeing this after device is toggled off/on with power button.  The
@@ -212,8 +343,153 @@ public class TextureMovieEncoder implements Runnable {
             return;
         }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE,
-                (int) (timestamp >> 32), (int) timestamp, transform));
+        long latchFence = 0;
+        if (callerUsesFences()) {
+            // Flush so the fence actually reaches the GPU before the encoder waits on it.
+            latchFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            GLES20.glFlush();
+        }
+        int result;
+        long oldFence;
+        synchronized (mTextureLock) {
+            if (mTextureState == TEXTURE_QUEUED) {
+                // waitForTextureRelease() wasn't called, so that frame has been overwritten.
+                mFrameRing.dropQueued();
+            }
+            // The encoder takes everything in the ring when it starts reading, so the ring
+            // is empty here, and this won't block.
+            result = mFrameRing.offer(mCallerTransform, timestamp);
+            if (result != FrameDescriptorRing.OFFER_DROPPED) {
+                mTextureState = TEXTURE_QUEUED;
+            }
+            oldFence = mLatchFence;
+            mLatchFence = latchFence;
+        }
+        deleteFence(oldFence);
+        if (result == FrameDescriptorRing.OFFER_QUEUED_WAS_EMPTY) {
+            mHandler.sendEmptyMessage(MSG_FRAME_AVAILABLE);
+        }
+    }
+
+    /**
+     * Makes sure the encoder is done with the texture, so the caller can latch a new frame
+     * into it.  Call right before updateTexImage(), on the thread that calls frameAvailable().
+     * <p>
+     * If the encoder hasn't started on the last frame, the frame is dropped, unless the frame
+     * policy is POLICY_BLOCK, in which case we wait for the encoder to get to it.  If the
+     * encoder is reading the texture, we wait for it to finish.  The waits are bounded, so a
+     * wedged encoder can't hang the caller.  Does nothing if we're not recording.
+     */
+    public void waitForTextureRelease() {
+        synchronized (mReadyFence) {
+            if (!mReady) {
+                return;
+            }
+        }
+        long fence;
+        synchronized (mTextureLock) {
+            if (mTextureState == TEXTURE_QUEUED &&
+                    mFramePolicy != FrameDescriptorRing.POLICY_BLOCK) {
+                if (VERBOSE) Log.d(TAG, "encoder falling behind, dropped frame");
+                mFrameRing.dropQueued();
+                mTextureState = TEXTURE_FREE;
+            }
+            long deadline = System.currentTimeMillis() + FrameDescriptorRing.BLOCK_TIMEOUT_MSEC;
+            while (mTextureState != TEXTURE_FREE) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    if (mTextureState == TEXTURE_QUEUED) {
+                        Log.w(TAG, "encoder didn't take frame, dropping it");
+                        mFrameRing.dropQueued();
+                        mTextureState = TEXTURE_FREE;
+                    } else {
+                        Log.w(TAG, "encoder still reading texture, latching anyway");
+                    }
+                    break;
+                }
+                try {
+                    mTextureLock.wait(remaining);
+                } catch (InterruptedException ie) {
+                    // keep waiting until the deadline
+                }
+            }
+            fence = mReleaseFence;
+            mReleaseFence = 0;
+        }
+        // The encoder has submitted its reads; make sure the GPU has finished them.
+        clientWaitForFence(fence);
+    }
+
+    /**
+     * Returns the number of frames dropped because the encoder fell behind.
+     */
+    public int getDroppedFrameCount() {
+        FrameDescriptorRing ring = mFrameRing;
+        return ring == null ? 0 : ring.getDroppedCount();
+    }
+
+    /**
+     * Returns the number of frames replaced by newer frames before the encoder got to them.
+     */
+    public int getCoalescedFrameCount() {
+        FrameDescriptorRing ring = mFrameRing;
+        return ring == null ? 0 : ring.getCoalescedCount();
+    }
+
+    /**
+     * Returns true if the caller's context and the encoder's context can both use fences.
+     * Call on the frameAvailable() thread.
+     */
+    private boolean callerUsesFences() {
+        if (!mCallerFencesChecked) {
+            mCallerUsesFences = GlUtil.isFenceSyncSupported();
+            mCallerFencesChecked = true;
+            Log.d(TAG, "caller fence sync supported: " + mCallerUsesFences);
+        }
+        return mCallerUsesFences && mEncoderUsesFences;
+    }
+
+    /**
+     * Returns true if the encoder can hand the texture back with a fence.  Call on the
+     * encoder thread.
+     */
+    private boolean encoderUsesFences() {
+        return mEncoderUsesFences && mCallerUsesFences;
+    }
+
+    /**
+     * Makes the current context wait for the fence on the GPU, then deletes it.  Does
+     * nothing if the fence is zero, or stale (e.g. from an old share group).
+     */
+    private static void waitForFence(long fence) {
+        if (fence != 0 && GLES30.glIsSync(fence)) {
+            GLES30.glWaitSync(fence, 0, GLES30.GL_TIMEOUT_IGNORED);
+            GLES30.glDeleteSync(fence);
+        }
+    }
+
+    /**
+     * Blocks until the fence is signaled (or a timeout expires), then deletes it.  Does
+     * nothing if the fence is zero, or stale.
+     */
+    private static void clientWaitForFence(long fence) {
+        if (fence != 0 && GLES30.glIsSync(fence)) {
+            int status = GLES30.glClientWaitSync(fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+                    FENCE_TIMEOUT_NSEC);
+            if (status == GLES30.GL_TIMEOUT_EXPIRED || status == GLES30.GL_WAIT_FAILED) {
+                Log.w(TAG, "texture release fence wait failed, status=" + status);
+            }
+            GLES30.glDeleteSync(fence);
+        }
+    }
+
+    /**
+     * Deletes the fence.  Does nothing if the fence is zero or stale.
+     */
+    private static void deleteFence(long fence) {
+        if (fence != 0 && GLES30.glIsSync(fence)) {
+            GLES30.glDeleteSync(fence);
+        }
     }
 
     /**
@@ -284,9 +560,7 @@ public class TextureMovieEncoder implements Runnable {
                     encoder.handleStopRecording();
                     break;
                 case MSG_FRAME_AVAILABLE:
-                    long timestamp = (((long) inputMessage.arg1) << 32) |
-                            (((long) inputMessage.arg2) & 0xffffffffL);
-                    encoder.handleFrameAvailable((float[]) obj, timestamp);
+                    encoder.handleFramesAvailable();
                     break;
                 case MSG_SET_TEXTURE_ID:
                     encoder.handleSetTexture(inputMessage.arg1);
@@ -309,14 +583,56 @@ public class TextureMovieEncoder implements Runnable {
     private void handleStartRecording(EncoderConfig config) {
         Log.d(TAG, "handleStartRecording " + config);
         mFrameNum = 0;
-        prepareEncoder(config.mEglContext, config.mWidth, config.mHeight, config.mBitRate,
-                config.mOutputFile);
+        prepareEncoder(config.mEglContext, config.mOutputs);
+    }
+
+    /**
+     * Encodes the newest frame in the frame ring.  The producer only sends
+     * MSG_FRAME_AVAILABLE when the ring goes from empty to non-empty, so we have to empty it.
+     * The texture only holds the newest frame, so any others are counted as coalesced.
+     */
+    private void handleFramesAvailable() {
+        long timestamp;
+        long latchFence;
+        synchronized (mTextureLock) {
+            timestamp = mFrameRing.pollNewest(mEncoderTransform);
+            if (timestamp < 0) {
+                // The producer gave up waiting and dropped it.
+                return;
+            }
+            mTextureState = TEXTURE_READING;
+            latchFence = mLatchFence;
+            mLatchFence = 0;
+        }
+        waitForFence(latchFence);
+
+        handleFrameAvailable(mEncoderTransform, timestamp);
+
+        // Let the producer know when we're done reading the texture.  With fences, it
+        // waits for the GPU itself; without, we have to wait here.
+        long releaseFence = 0;
+        if (encoderUsesFences()) {
+            releaseFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            GLES20.glFlush();
+        } else {
+            GLES20.glFinish();
+        }
+        long oldFence;
+        synchronized (mTextureLock) {
+            oldFence = mReleaseFence;
+            mReleaseFence = releaseFence;
+            if (mTextureState == TEXTURE_READING) {
+                mTextureState = TEXTURE_FREE;
+            }
+            mTextureLock.notifyAll();
+        }
+        deleteFence(oldFence);
     }
 
     /**
      * Handles notification of an available frame.
      * <p>
-     * The texture is rendered onto the encoder's input surface, along with a moving
+     * The texture is rendered onto the encoders' input surfaces, along with a moving
      * box (just because we can).
      * <p>
      * @param transform The texture transform, from SurfaceTexture.
@@ -324,13 +640,37 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleFrameAvailable(float[] transform, long timestampNanos) {
         if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
-        mVideoEncoder.drainEncoder(false);
-        mFullScreen.drawFrame(mTextureId, transform);
+        for (VideoEncoderCore encoder : mVideoEncoders) {
+            encoder.drainEncoder(false);
+        }
 
-        drawBox(mFrameNum++);
+        if (mInputWindowSurfaces.length == 1) {
+            // Draw straight into the encoder's surface.
+            WindowSurface surface = mInputWindowSurfaces[0];
+            mFullScreen.drawFrame(mTextureId, transform);
+            drawBox(mFrameNum++, surface.getWidth());
+            surface.setPresentationTime(timestampNanos);
+            surface.swapBuffers();
+            return;
+        }
 
-        mInputWindowSurface.setPresentationTime(timestampNanos);
-        mInputWindowSurface.swapBuffers();
+        // Sample the camera texture once, into the offscreen texture.  The framebuffer
+        // binding is context state, so it doesn't matter which surface is current.
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glViewport(0, 0, mOffscreenWidth, mOffscreenHeight);
+        mFullScreen.drawFrame(mTextureId, transform);
+        drawBox(mFrameNum++, mOffscreenWidth);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        // Scale it into each output.
+        for (int i = 0; i < mInputWindowSurfaces.length; i++) {
+            WindowSurface surface = mInputWindowSurfaces[i];
+            surface.makeCurrent();
+            GLES20.glViewport(0, 0, surface.getWidth(), surface.getHeight());
+            mScaler.drawFrame(mOffscreenTexture, mOutputTransforms[i]);
+            surface.setPresentationTime(timestampNanos);
+            surface.swapBuffers();
+        }
     }
 
     /**
@@ -338,7 +678,9 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
-        mVideoEncoder.drainEncoder(true);
+        for (VideoEncoderCore encoder : mVideoEncoders) {
+            encoder.drainEncoder(true);
+        }
         releaseEncoder();
     }
 
@@ -360,46 +702,204 @@ public class TextureMovieEncoder implements Runnable {
     private void handleUpdateSharedContext(EGLContext newSharedContext) {
         Log.d(TAG, "handleUpdatedSharedContext " + newSharedContext);
 
-        // Release the EGLSurface and EGLContext.
-        mInputWindowSurface.releaseEglSurface();
+        // Release the EGLSurfaces and EGLContext.  The framebuffer goes with the context.
+        for (WindowSurface surface : mInputWindowSurfaces) {
+            surface.releaseEglSurface();
+        }
         mFullScreen.release(false);
+        releaseFramebuffer();
         mEglCore.release();
 
-        // Create a new EGLContext and recreate the window surface.
-        mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface.recreate(mEglCore);
-        mInputWindowSurface.makeCurrent();
+        // Create a new EGLContext and recreate the window surfaces.
+        mEglCore = new EglCore(newSharedContext,
+                EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        for (WindowSurface surface : mInputWindowSurfaces) {
+            surface.recreate(mEglCore);
+        }
+        mInputWindowSurfaces[0].makeCurrent();
+        synchronized (mTextureLock) {
+            mLatchFence = mReleaseFence = 0;
+        }
+        mEncoderUsesFences = GlUtil.isFenceSyncSupported();
 
         // Create new programs and such for the new context.
-        mFullScreen = new FullFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        prepareRendering();
     }
 
-    private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate,
-            File outputFile) {
-        try {
-            mVideoEncoder = new VideoEncoderCore(width, height, bitRate, outputFile);
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
+    private void prepareEncoder(EGLContext sharedContext, EncoderConfig.Output[] outputs) {
+        mVideoEncoders = new VideoEncoderCore[outputs.length];
+        mInputWindowSurfaces = new WindowSurface[outputs.length];
+        // GLES 3 if we can get it, for fences.
+        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        for (int i = 0; i < outputs.length; i++) {
+            EncoderConfig.Output output = outputs[i];
+            try {
+                mVideoEncoders[i] = new VideoEncoderCore(output.mWidth, output.mHeight,
+                        output.mBitRate, output.mOutputFile, true);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            mInputWindowSurfaces[i] = new WindowSurface(mEglCore,
+                    mVideoEncoders[i].getInputSurface(), true);
         }
-        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
-        mInputWindowSurface.makeCurrent();
+        mInputWindowSurfaces[0].makeCurrent();
+        mEncoderUsesFences = GlUtil.isFenceSyncSupported();
+        Log.d(TAG, "encoder fence sync supported: " + mEncoderUsesFences);
 
+        prepareRendering();
+    }
+
+    /**
+     * Creates the programs, and for multiple outputs the offscreen framebuffer, that we
+     * render with.  The EGL context must be current.
+     */
+    private void prepareRendering() {
         mFullScreen = new FullFrameRect(
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        if (mInputWindowSurfaces.length > 1) {
+            // Size the offscreen texture to match the largest output.
+            int width = 0;
+            int height = 0;
+            for (WindowSurface surface : mInputWindowSurfaces) {
+                if (surface.getWidth() * surface.getHeight() > width * height) {
+                    width = surface.getWidth();
+                    height = surface.getHeight();
+                }
+            }
+            prepareFramebuffer(width, height);
+            mScaler = new FullFrameRect(
+                    new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
+
+            mOutputTransforms = new float[mInputWindowSurfaces.length][];
+            for (int i = 0; i < mInputWindowSurfaces.length; i++) {
+                WindowSurface surface = mInputWindowSurfaces[i];
+                mOutputTransforms[i] = computeCropTransform(width, height,
+                        surface.getWidth(), surface.getHeight());
+            }
+        }
+    }
+
+    /**
+     * Returns a texture transform that selects the centered part of a srcWidth x srcHeight
+     * texture with the same aspect ratio as a dstWidth x dstHeight output.
+     */
+    private static float[] computeCropTransform(int srcWidth, int srcHeight, int dstWidth,
+            int dstHeight) {
+        float srcAspect = (float) srcWidth / srcHeight;
+        float dstAspect = (float) dstWidth / dstHeight;
+        float scaleX = 1.0f;
+        float scaleY = 1.0f;
+        if (dstAspect > srcAspect) {
+            // output is wider; use the full width and crop top and bottom
+            scaleY = srcAspect / dstAspect;
+        } else {
+            // output is narrower (or the same); crop the sides
+            scaleX = dstAspect / srcAspect;
+        }
+
+        float[] transform = new float[16];
+        Matrix.setIdentityM(transform, 0);
+        Matrix.translateM(transform, 0, (1.0f - scaleX) / 2, (1.0f - scaleY) / 2, 0);
+        Matrix.scaleM(transform, 0, scaleX, scaleY, 1.0f);
+        if (dstAspect != srcAspect) {
+            Log.d(TAG, "output " + dstWidth + "x" + dstHeight + " cropped from " + srcWidth +
+                    "x" + srcHeight + ", scale " + scaleX + "," + scaleY);
+        }
+        return transform;
+    }
+
+    /**
+     * Creates the offscreen texture and a framebuffer object that renders into it.
+     */
+    private void prepareFramebuffer(int width, int height) {
+        GlUtil.checkGlError("prepareFramebuffer start");
+        int[] values = new int[1];
+
+        GLES20.glGenTextures(1, values, 0);
+        mOffscreenTexture = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mOffscreenTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        // Linear filtering, since we're scaling down into the smaller outputs.
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GlUtil.checkGlError("offscreen texture");
+
+        GLES20.glGenFramebuffers(1, values, 0);
+        mFramebuffer = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mOffscreenTexture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Framebuffer not complete, status=" + status);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GlUtil.checkGlError("prepareFramebuffer done");
+
+        mOffscreenWidth = width;
+        mOffscreenHeight = height;
+        Log.d(TAG, "simulcast offscreen texture is " + width + "x" + height);
+    }
+
+    /**
+     * Releases the offscreen framebuffer and the program that draws from it, if we have them.
+     */
+    private void releaseFramebuffer() {
+        if (mScaler != null) {
+            mScaler.release(false);
+            mScaler = null;
+        }
+        if (mFramebuffer > 0) {
+            int[] values = new int[] { mFramebuffer };
+            GLES20.glDeleteFramebuffers(1, values, 0);
+            values[0] = mOffscreenTexture;
+            GLES20.glDeleteTextures(1, values, 0);
+            mFramebuffer = mOffscreenTexture = 0;
+        }
     }
 
     private void releaseEncoder() {
-        mVideoEncoder.release();
-        if (mInputWindowSurface != null) {
-            mInputWindowSurface.release();
-            mInputWindowSurface = null;
+        FrameDescriptorRing ring = mFrameRing;
+        Log.d(TAG, "frames dropped=" + ring.getDroppedCount() + " coalesced=" +
+                ring.getCoalescedCount() + " blocked=" + ring.getBlockedCount());
+        // The fences belong to the share group, so we can clean them up from here.  Don't
+        // leave the producer waiting for a frame we won't encode.
+        long latchFence, releaseFence;
+        synchronized (mTextureLock) {
+            latchFence = mLatchFence;
+            releaseFence = mReleaseFence;
+            mLatchFence = mReleaseFence = 0;
+            mFrameRing.clear();
+            mTextureState = TEXTURE_FREE;
+            mTextureLock.notifyAll();
         }
+        if (mEncoderUsesFences) {
+            mEncoderUsesFences = false;
+            deleteFence(latchFence);
+            deleteFence(releaseFence);
+        }
+        for (VideoEncoderCore encoder : mVideoEncoders) {
+            encoder.release();
+        }
+        releaseFramebuffer();
         if (mFullScreen != null) {
             mFullScreen.release(false);
             mFullScreen = null;
         }
+        if (mInputWindowSurfaces != null) {
+            for (WindowSurface surface : mInputWindowSurfaces) {
+                surface.release();
+            }
+            mInputWindowSurfaces = null;
+        }
         if (mEglCore != null) {
             mEglCore.release();
             mEglCore = null;
@@ -409,8 +909,7 @@ public class TextureMovieEncoder implements Runnable {
     /**
      * Draws a box, with position offset.
      */
-    private void drawBox(int posn) {
-        final int width = mInputWindowSurface.getWidth();
+    private void drawBox(int posn, int width) {
         int xpos = (posn * 4) % (width - 50);
         GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
         GLES20.glScissor(xpos, 0, 100, 100);
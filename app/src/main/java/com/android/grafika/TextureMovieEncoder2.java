@@ -40,6 +40,9 @@ import java.lang.ref.WeakReference;
  * but it doesn't matter -- either it runs early and prevents blockage, or it runs late
  * and un-blocks the encoder.
  * <p>
+ * If the VideoEncoderCore is in callback mode, its output is drained as it arrives, so the
+ * per-frame message is skipped entirely.
+ * <p>
  * TODO: reconcile this with TextureMovieEncoder.
  */
 public class TextureMovieEncoder2 implements Runnable {
@@ -54,6 +57,7 @@ public class TextureMovieEncoder2 implements Runnable {
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
+    private final boolean mCallbackMode;
 
     private Object mReadyFence = new Object();      // guards ready/running
     private boolean mReady;
@@ -72,6 +76,7 @@ public class TextureMovieEncoder2 implements Runnable {
         Log.d(TAG, "Encoder: startRecording()");
 
         mVideoEncoder = encoderCore;
+        mCallbackMode = encoderCore.isCallbackMode();
 
         synchronized (mReadyFence) {
             if (mRunning) {
@@ -121,6 +126,9 @@ public class TextureMovieEncoder2 implements Runnable {
      * to wake the encoder thread up to do work so the producer side doesn't block.
      */
     public void frameAvailableSoon() {
+        if (mCallbackMode) {
+            return;     // nothing to drain; the encoder delivers output by callback
+        }
         synchronized (mReadyFence) {
             if (!mReady) {
                 return;
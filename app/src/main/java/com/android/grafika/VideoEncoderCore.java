@@ -20,6 +20,10 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
@@ -36,8 +40,13 @@ import java.nio.ByteBuffer;
  * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p>
+ * Alternatively, on API 23+, the encoder can run in callback mode.  Output is then delivered
+ * by MediaCodec.Callback on a dedicated thread and sent to the muxer as soon as it arrives,
+ * so drainEncoder(false) does nothing, and drainEncoder(true) just waits for the EOS
+ * callback instead of polling for it.
  */
-public class VideoEncoderCore {
+public class VideoEncoderCore implements SegmentingMuxer.SyncFrameRequester {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
@@ -45,22 +54,56 @@ public class VideoEncoderCore {
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final int FRAME_RATE = 30;               // 30fps
     private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    private static final int EOS_TIMEOUT_MSEC = 5000;       // max wait for EOS in callback mode
 
     private Surface mInputSurface;
-    private MediaMuxer mMuxer;
+    private SampleSink mMuxer;
+    private EncoderPipeline.MuxerSink mMuxerSink;
     private MediaCodec mEncoder;
-    private MediaCodec.BufferInfo mBufferInfo;
-    private int mTrackIndex;
-    private boolean mMuxerStarted;
+    private EncoderPipeline mPipeline;
 
+    // Callback mode only.  Output is handled on mCallbackThread; mEosLock guards mEosReached.
+    private HandlerThread mCallbackThread;
+    private final Object mEosLock = new Object();
+    private boolean mEosReached;
 
     /**
      * Configures encoder and muxer state, and prepares the input Surface.
      */
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
-        mBufferInfo = new MediaCodec.BufferInfo();
+        this(width, height, bitRate, outputFile, false);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param useCallback If set, and the device supports it (API 23+), encoder output is
+     *     handled by MediaCodec.Callback rather than by polling in drainEncoder().
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+            boolean useCallback) throws IOException {
+        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
+        // because our MediaFormat doesn't have the Magic Goodies.  These can only be
+        // obtained from the encoder after it has started processing data.
+        //
+        // We're not actually interested in multiplexing audio.  We just want to convert
+        // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
+        //
+        // The muxer is fed from its own thread (see MuxerWriter), so a slow write doesn't
+        // hold up the encoder.
+        this(width, height, bitRate, new MuxerWriter(new MediaMuxer(outputFile.toString(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)), useCallback);
+    }
 
+    /**
+     * Configures encoder state, and prepares the input Surface.  Output goes to the sink,
+     * which gets its track added and is started once the encoder has produced its format.
+     * <p>
+     * To record in segments, pass a SegmentingMuxer, and make this its SyncFrameRequester.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, SampleSink sink,
+            boolean useCallback) throws IOException {
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
         // Set some properties.  Failing to specify some of these can cause the MediaCodec
@@ -72,24 +115,28 @@ public class VideoEncoderCore {
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
-        // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
-        // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        // Get a MediaCodec encoder from the pool, and configure it with our format.  Get a
+        // Surface we can use for input and wrap it with a class that handles the EGL work.
+        mEncoder = CodecPool.getInstance().acquireEncoder(MIME_TYPE, width, height);
+
+        // Encoder output goes through the pipeline to the sink, which is started once the
+        // encoder tells us its format.  This has to be in place before any callbacks arrive.
+        mMuxer = sink;
+        mMuxerSink = new EncoderPipeline.MuxerSink(sink);
+        mPipeline = new EncoderPipeline(EncoderPipeline.wrap(mEncoder), mMuxerSink,
+                width, height);
+
+        if (useCallback && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // The callback must be set before configure().
+            mCallbackThread = new HandlerThread("VideoEncoderCore");
+            mCallbackThread.start();
+            mEncoder.setCallback(new EncoderCallback(), new Handler(mCallbackThread.getLooper()));
+        } else if (useCallback) {
+            Log.d(TAG, "callback mode not supported, polling encoder output");
+        }
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
-
-        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
-        // because our MediaFormat doesn't have the Magic Goodies.  These can only be
-        // obtained from the encoder after it has started processing data.
-        //
-        // We're not actually interested in multiplexing audio.  We just want to convert
-        // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-
-        mTrackIndex = -1;
-        mMuxerStarted = false;
     }
 
     /**
@@ -99,20 +146,69 @@ public class VideoEncoderCore {
         return mInputSurface;
     }
 
+    /**
+     * Returns the parser that sees all of the encoder's output.  It holds the SPS/PPS and
+     * per-frame bitstream statistics.
+     */
+    public AvcNalParser getNalParser() {
+        return mPipeline.getNalParser();
+    }
+
+    /**
+     * Returns true if encoder output is delivered by callback rather than drainEncoder().
+     */
+    public boolean isCallbackMode() {
+        return mCallbackThread != null;
+    }
+
+    /**
+     * Asks the encoder to make the next frame a sync frame.  Requires API 19; on older
+     * devices this does nothing, and sync frames arrive every IFRAME_INTERVAL seconds.
+     * <p>
+     * May be called from the thread that handles encoder output.
+     */
+    @Override
+    public void requestSyncFrame() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mEncoder.setParameters(params);
+    }
+
     /**
      * Releases encoder resources.
      */
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
+        Log.d(TAG, "bitstream stats: " + mPipeline.getNalParser());
+        Log.d(TAG, "pipeline stats: " + mPipeline);
+        if (mCallbackThread != null) {
+            // Shut the callback thread down before touching the codec.  If we gave up waiting
+            // for EOS, or the codec reported an error, a callback may still be running, and
+            // it mustn't find the codec stopped or reset under it.  Anything the codec posts
+            // after this goes to a dead Looper and is dropped.
+            mCallbackThread.quitSafely();
+            try {
+                mCallbackThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "callback thread join() was interrupted", ie);
+            }
+            mCallbackThread = null;
+        }
         if (mEncoder != null) {
+            // Hand the codec back to the pool, rather than releasing it, so the next
+            // recording doesn't have to wait for a new one.
             mEncoder.stop();
-            mEncoder.release();
+            CodecPool.getInstance().recycle(mEncoder);
             mEncoder = null;
         }
         if (mMuxer != null) {
-            // TODO: stop() throws an exception if you haven't fed it any data.  Keep track
-            //       of frames submitted, and don't call stop() if we haven't written anything.
-            mMuxer.stop();
+            // stop() throws an exception if you haven't fed it any data.
+            if (mMuxerSink.isStarted()) {
+                mMuxer.stop();
+            }
             mMuxer.release();
             mMuxer = null;
         }
@@ -129,84 +225,79 @@ public class VideoEncoderCore {
      * not recording audio.
      */
     public void drainEncoder(boolean endOfStream) {
-        final int TIMEOUT_USEC = 10000;
-        if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
-
-        if (endOfStream) {
-            if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
-            mEncoder.signalEndOfInputStream();
+        if (mCallbackThread != null) {
+            // Output is handled by EncoderCallback as it arrives.
+            if (endOfStream) {
+                if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+                mEncoder.signalEndOfInputStream();
+                waitForEos();
+            }
+            return;
         }
+        mPipeline.drain(endOfStream);
+    }
 
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-        while (true) {
-            int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // no output available yet
-                if (!endOfStream) {
-                    break;      // out of while
-                } else {
-                    if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
-                }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // not expected for an encoder
-                encoderOutputBuffers = mEncoder.getOutputBuffers();
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
-            } else if (encoderStatus < 0) {
-                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
-                        encoderStatus);
-                // let's ignore it
-            } else {
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                            " was null");
+    /**
+     * Waits for EncoderCallback to see the end of the stream.  Gives up after a while, so a
+     * wedged codec doesn't hang the caller.
+     */
+    private void waitForEos() {
+        long deadline = System.currentTimeMillis() + EOS_TIMEOUT_MSEC;
+        synchronized (mEosLock) {
+            while (!mEosReached) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.w(TAG, "timed out waiting for EOS");
+                    return;
                 }
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
+                try {
+                    mEosLock.wait(remaining);
+                } catch (InterruptedException ie) {
+                    Log.w(TAG, "EOS wait was interrupted", ie);
+                    return;
                 }
+            }
+        }
+        if (VERBOSE) Log.d(TAG, "end of stream reached");
+    }
 
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
+    /**
+     * Signals waitForEos().
+     */
+    private void signalEos() {
+        synchronized (mEosLock) {
+            mEosReached = true;
+            mEosLock.notifyAll();
+        }
+    }
 
-                    // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+    /**
+     * Handles encoder output in callback mode.  Runs on mCallbackThread.
+     */
+    private class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // not used; input comes from the Surface
+        }
 
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) {
-                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                mBufferInfo.presentationTimeUs);
-                    }
-                }
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            if (mPipeline.handleOutputBuffer(index, info)) {
+                signalEos();
+            }
+        }
 
-                mEncoder.releaseOutputBuffer(encoderStatus, false);
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            mPipeline.handleOutputFormat(format);
+        }
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (!endOfStream) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                    } else {
-                        if (VERBOSE) Log.d(TAG, "end of stream reached");
-                    }
-                    break;      // out of while
-                }
-            }
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "encoder error", e);
+            // Nothing more is coming, so don't leave drainEncoder(true) waiting.
+            signalEos();
         }
     }
 }
@@ -173,6 +173,19 @@ public class GlUtil {
         return fb;
     }
 
+    /**
+     * Returns true if the current context supports fence sync objects (GLES 3.0 or later).
+     */
+    public static boolean isFenceSyncSupported() {
+        // Format is "OpenGL ES <major>.<minor> <vendor-specific info>".
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        final String prefix = "OpenGL ES ";
+        if (version == null || !version.startsWith(prefix) || version.length() <= prefix.length()) {
+            return false;
+        }
+        return Character.digit(version.charAt(prefix.length()), 10) >= 3;
+    }
+
     /**
      * Writes GL version info to the log.
      */